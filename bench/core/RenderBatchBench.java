@@ -0,0 +1,69 @@
+package core;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+
+import utils.FileOp;
+import utils.ToolRegistry;
+
+public class RenderBatchBench {
+
+	/**
+	 * RenderBatchBench : frames/s of the RenderFarm for 1, 8 and 32 frames
+	 * per darktable-cli. The same RAW and XMP are rendered as many frames at
+	 * a small size, so darktable-cli startup is a large part of each frame.
+	 * Run with bench/ and src/ in the classpath: java core.RenderBatchBench
+	 * RAW XMP [frames] [jobs] [width]
+	 */
+
+	public static void main(String[] args) throws IOException {
+		if (args.length < 2) {
+			System.err.println("usage: java core.RenderBatchBench RAW XMP"
+					+ " [frames] [jobs] [width]");
+			System.exit(1);
+		}
+		String raw = args[0];
+		String xmp = args[1];
+		int nFrames = (args.length > 2) ? Integer.parseInt(args[2]) : 64;
+		int jobs = (args.length > 3) ? Integer.parseInt(args[3]) : 1;
+		String width = (args.length > 4) ? args[4] : "300";
+
+		String darktablecliBin = ToolRegistry.get(ToolRegistry.DARKTABLE_CLI)
+				.require("benchmark");
+		String version = ToolRegistry.get(ToolRegistry.DARKTABLE_CLI)
+				.getVersion();
+		System.out.println(version + ", " + nFrames + " frames, " + jobs
+				+ " job(s), width " + width);
+		if (!RenderFarm.isMultiInput(version)) {
+			System.out.println("no batch with this version: K > 1 renders"
+					+ " frames one by one");
+		}
+
+		for (int k : new int[] { 1, 8, 32 }) {
+			File outFolder = Files.createTempDirectory("tldt-bench-batch")
+					.toFile();
+			try {
+				List<RenderJob> renderJobs = new ArrayList<RenderJob>();
+				for (int i = 0; i < nFrames; i++) {
+					renderJobs.add(new RenderJob(raw, xmp, outFolder + "/"
+							+ String.format("frame_%05d.jpg", i), "--width",
+							width, "--height", width));
+				}
+				RenderFarm farm = new RenderFarm(darktablecliBin, jobs, 0);
+				farm.setBatchSize(k);
+				long t0 = System.nanoTime();
+				int nFailed = farm.render(renderJobs);
+				long t = System.nanoTime() - t0;
+				System.out.println(String.format(
+						"K = %2d : %8.2f frames/s (%d failed)", k,
+						(nFrames - nFailed) * 1e9 / t, nFailed));
+			} finally {
+				FileOp.deleteRecursive(outFolder);
+			}
+		}
+	}
+
+}
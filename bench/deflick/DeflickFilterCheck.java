@@ -0,0 +1,197 @@
+package deflick;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Random;
+
+public class DeflickFilterCheck {
+
+	/**
+	 * DeflickFilterCheck : golden check of DeflickFilter. Without argument,
+	 * synthetic flickering signals (with spikes) are filtered by
+	 * DeflickFilter and by a literal port of the octave script
+	 * (OctaveDeflickFcn), both results must be equal. With arguments, the
+	 * result of DeflickFilter on a luminance file is compared to the
+	 * _deflick.txt written by octave: java deflick.DeflickFilterCheck
+	 * ficL.txt ficL_deflick.txt [lpFiltMinNum]
+	 */
+
+	public static void main(String[] args) throws IOException {
+		if (args.length >= 2) {
+			double[] in = load(args[0]);
+			double[] golden = load(args[1]);
+			DeflickFilter df = new DeflickFilter(".", "ficL.txt");
+			if (args.length > 2) {
+				df.setLpFiltMinNum(Integer.parseInt(args[2]));
+			}
+			// octave file is printed with %.6f
+			check("octave " + args[1], df.filter(in), golden, 1e-6);
+			return;
+		}
+
+		Random random = new Random(1);
+		int[] sizes = { 1, 2, 3, 10, 47, 200, 1000, 5000 };
+		for (int n : sizes) {
+			double[] in = new double[n];
+			for (int i = 0; i < n; i++) {
+				in[i] = 0.4 + 0.1 * Math.sin(i / 50.0) + 0.01
+						* random.nextGaussian();
+				if (random.nextInt(20) == 0) {
+					in[i] += 0.2; // spike
+				}
+			}
+			for (int lp : new int[] { 10, 50 }) {
+				DeflickFilter df = new DeflickFilter(".", "ficL.txt");
+				df.setLpFiltMinNum(lp);
+				check("n=" + n + " LP=" + lp, df.filter(in),
+						reference(in, lp, 12, 0.02), 1e-12);
+			}
+		}
+
+		// timing on a long sequence
+		double[] in = new double[20000];
+		for (int i = 0; i < in.length; i++) {
+			in[i] = 0.4 + 0.01 * random.nextGaussian();
+		}
+		DeflickFilter df = new DeflickFilter(".", "ficL.txt");
+		for (int warmup = 0; warmup < 3; warmup++) {
+			df.filter(in);
+			reference(in, 50, 12, 0.02);
+		}
+		long t0 = System.nanoTime();
+		df.filter(in);
+		long t1 = System.nanoTime();
+		reference(in, 50, 12, 0.02);
+		long t2 = System.nanoTime();
+		System.out.println(in.length + " frames: DeflickFilter "
+				+ (t1 - t0) / 1000000 + " ms, octave port "
+				+ (t2 - t1) / 1000000 + " ms");
+	}
+
+	private static void check(String name, double[] out, double[] golden,
+			double tol) {
+		if (out.length != golden.length) {
+			throw new AssertionError(name + ": " + out.length + " values, "
+					+ golden.length + " expected");
+		}
+		double errMax = 0;
+		for (int i = 0; i < out.length; i++) {
+			errMax = Math.max(errMax, Math.abs(out[i] - golden[i]));
+		}
+		if (errMax > tol) {
+			throw new AssertionError(name + ": max error " + errMax);
+		}
+		System.out.println(name + " : OK (max error " + errMax + ")");
+	}
+
+	private static double[] load(String fileName) throws IOException {
+		ArrayList<Double> values = new ArrayList<Double>();
+		BufferedReader br = new BufferedReader(new FileReader(fileName));
+		String line;
+		while ((line = br.readLine()) != null) {
+			if (!line.trim().isEmpty()) {
+				values.add(Double.valueOf(line.trim()));
+			}
+		}
+		br.close();
+		double[] out = new double[values.size()];
+		for (int i = 0; i < out.length; i++) {
+			out[i] = values.get(i);
+		}
+		return out;
+	}
+
+	// ---- literal port of the octave script (1-based indices kept) ----
+
+	private static double[] reference(double[] inSignal, int lpFiltMinNum,
+			int spikeFiltMinNum, double deltaLumThdMax) {
+		int nTot = inSignal.length;
+		if (nTot < 2) {
+			return inSignal.clone();
+		}
+		double[] avgSignal = refWindowAverage(inSignal, 24);
+		double[] delta = new double[nTot];
+		double mean = 0;
+		for (int i = 0; i < nTot; i++) {
+			delta[i] = avgSignal[i] - inSignal[i];
+			mean += delta[i];
+		}
+		mean /= nTot;
+		double var = 0;
+		for (int i = 0; i < nTot; i++) {
+			var += (delta[i] - mean) * (delta[i] - mean);
+		}
+		double stdLum = Math.sqrt(var / (nTot - 1));
+		int nLpFilt = Math.min(lpFiltMinNum, (int) Math.floor(nTot / 2.0));
+		double dLMax = Math.max(deltaLumThdMax, 1.5 * stdLum);
+
+		// notRejIdx = find(abs(avgSignal-in_signal)<dL_max)
+		ArrayList<Integer> notRejIdx = new ArrayList<Integer>();
+		for (int i = 1; i <= nTot; i++) {
+			if (Math.abs(avgSignal[i - 1] - inSignal[i - 1]) < dLMax) {
+				notRejIdx.add(i);
+			}
+		}
+		if (notRejIdx.size() < 2) {
+			// unique([1 notRejIdx(:)' Ntot])
+			ArrayList<Integer> idx = new ArrayList<Integer>();
+			idx.add(1);
+			for (int i : notRejIdx) {
+				if (!idx.contains(i)) {
+					idx.add(i);
+				}
+			}
+			if (!idx.contains(nTot)) {
+				idx.add(nTot);
+			}
+			java.util.Collections.sort(idx);
+			notRejIdx = idx;
+		}
+		// interp1(..., 'linear', 'extrap')
+		double[] filtSpikes = new double[nTot];
+		for (int t = 1; t <= nTot; t++) {
+			int k = 0;
+			while (k < notRejIdx.size() - 2 && t > notRejIdx.get(k + 1)) {
+				k++;
+			}
+			int x0 = notRejIdx.get(k);
+			int x1 = notRejIdx.get(k + 1);
+			double y0 = inSignal[x0 - 1];
+			double y1 = inSignal[x1 - 1];
+			filtSpikes[t - 1] = y0 + (y1 - y0) * (t - x0) / (x1 - x0);
+		}
+		return refWindowAverage(filtSpikes, nLpFilt);
+	}
+
+	private static double[] refWindowAverage(double[] inRaw, int winHalfSize) {
+		int nTot = inRaw.length;
+		// weightGen=abs([1./[-h:-1] 1 1./[1:h]].^0.5)'; winGen=-h:h
+		double[] weightGen = new double[2 * winHalfSize + 1];
+		int[] winGen = new int[2 * winHalfSize + 1];
+		for (int j = 0; j < weightGen.length; j++) {
+			winGen[j] = j - winHalfSize;
+			weightGen[j] = (winGen[j] == 0) ? 1 : Math.sqrt(Math.abs(1.0d
+					/ winGen[j]));
+		}
+		double[] outAvg = new double[nTot];
+		for (int iL = 1; iL <= nTot; iL++) {
+			double weightTot = 0;
+			for (int j = 0; j < winGen.length; j++) {
+				if (winGen[j] + iL >= 1 && winGen[j] + iL <= nTot) {
+					weightTot += weightGen[j];
+				}
+			}
+			double sum = 0;
+			for (int j = 0; j < winGen.length; j++) {
+				if (winGen[j] + iL >= 1 && winGen[j] + iL <= nTot) {
+					sum += inRaw[iL + winGen[j] - 1] * weightGen[j] / weightTot;
+				}
+			}
+			outAvg[iL - 1] = sum;
+		}
+		return outAvg;
+	}
+
+}
@@ -0,0 +1,71 @@
+package operations;
+
+import java.util.Iterator;
+
+public class DTConfListGetBench {
+
+	/**
+	 * DTConfListGetBench : DTConfList.get(Integer) on 10k frames, compared to
+	 * the previous linear scan of the TreeSet. Run with bench/ and src/ in the
+	 * classpath: java operations.DTConfListGetBench [nFrames]
+	 */
+
+	public static void main(String[] args) {
+		int nFrames = (args.length > 0) ? Integer.parseInt(args[0]) : 10000;
+		int firstIdx = 1000;
+
+		DTConfList dtcl = new DTConfList();
+		for (int i = 0; i < nFrames; i++) {
+			dtcl.add(new DTConfiguration(firstIdx + i));
+		}
+
+		// same access pattern as writing interpolated values: all frames in
+		// order
+		for (int warmup = 0; warmup < 3; warmup++) {
+			getAllLinear(dtcl, firstIdx, nFrames);
+			getAll(dtcl, firstIdx, nFrames);
+		}
+		long t0 = System.nanoTime();
+		long sumLinear = getAllLinear(dtcl, firstIdx, nFrames);
+		long t1 = System.nanoTime();
+		long sum = getAll(dtcl, firstIdx, nFrames);
+		long t2 = System.nanoTime();
+
+		if (sum != sumLinear) {
+			throw new AssertionError("get() and linear scan differ");
+		}
+		System.out.println(nFrames + " frames, get() on all frames:");
+		System.out.println("linear scan : " + (t1 - t0) / 1000000 + " ms");
+		System.out.println("DTConfList  : " + (t2 - t1) / 1000000 + " ms");
+	}
+
+	private static long getAll(DTConfList dtcl, int firstIdx, int nFrames) {
+		long sum = 0;
+		for (int i = 0; i < nFrames; i++) {
+			sum += dtcl.get(firstIdx + i).index;
+		}
+		return sum;
+	}
+
+	private static long getAllLinear(DTConfList dtcl, int firstIdx,
+			int nFrames) {
+		long sum = 0;
+		for (int i = 0; i < nFrames; i++) {
+			sum += linearGet(dtcl, firstIdx + i).index;
+		}
+		return sum;
+	}
+
+	private static DTConfiguration linearGet(DTConfList dtcl, Integer index) {
+		// previous implementation of DTConfList.get(Integer)
+		Iterator<DTConfiguration> itIndex = dtcl.iterator();
+		while (itIndex.hasNext()) {
+			DTConfiguration dtc = itIndex.next();
+			if (dtc.index.equals(index)) {
+				return dtc;
+			}
+		}
+		return null;
+	}
+
+}
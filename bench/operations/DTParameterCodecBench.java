@@ -0,0 +1,178 @@
+package operations;
+
+import java.util.Random;
+
+import javax.xml.bind.DatatypeConverter;
+
+import operations.iop.Colorzones;
+import operations.iop.Tonecurve;
+
+public class DTParameterCodecBench {
+
+	/**
+	 * DTParameterCodecBench : decode/encode of history_params with the
+	 * ByteBuffer codec (DTOperation.readParams/writeParams), compared to the
+	 * previous hexadecimal string path, on tonecurve and colorzones sized
+	 * params. Run with bench/ and src/ in the classpath: java
+	 * operations.DTParameterCodecBench [iterations]
+	 */
+
+	public static void main(String[] args) {
+		int nIter = (args.length > 0) ? Integer.parseInt(args[0]) : 20000;
+
+		DTOperation[] ops = { newOperation(new Tonecurve(), "4"),
+				newOperation(new Colorzones(), "3") };
+		for (DTOperation dtOp : ops) {
+			String par = DTOperation.writeParams(dtOp);
+			String hex = legacyHex(dtOp);
+
+			// check both paths give the same values
+			DTOperation check = newOperation(dtOp, dtOp.version);
+			legacyReadParams(check, par);
+			if (!DTOperation.writeParams(check).equals(par)) {
+				throw new AssertionError("codecs differ on " + dtOp.name);
+			}
+
+			for (int warmup = 0; warmup < 3; warmup++) {
+				benchRead(dtOp, par, nIter, true);
+				benchRead(dtOp, par, nIter, false);
+				benchWrite(dtOp, nIter, true);
+				benchWrite(dtOp, nIter, false);
+			}
+			System.out.println(dtOp.name + " (" + hex.length() / 2
+					+ " bytes), " + nIter + " iterations:");
+			System.out.println("read  hexadecimal : "
+					+ benchRead(dtOp, par, nIter, true) + " ms");
+			System.out.println("read  ByteBuffer  : "
+					+ benchRead(dtOp, par, nIter, false) + " ms");
+			System.out.println("write hexadecimal : "
+					+ benchWrite(dtOp, nIter, true) + " ms");
+			System.out.println("write ByteBuffer  : "
+					+ benchWrite(dtOp, nIter, false) + " ms");
+		}
+	}
+
+	private static DTOperation newOperation(DTOperation dtOp, String version) {
+		// operation with random values
+		DTOperation newOp;
+		try {
+			newOp = dtOp.getClass().newInstance();
+		} catch (Exception e) {
+			throw new AssertionError(e);
+		}
+		newOp.version = version;
+		newOp.addParam();
+		Random random = new Random(1);
+		for (DTParameter param : newOp.values()) {
+			DTValue value = new DTValue(param.length);
+			for (int i = 0; i < param.length; i++) {
+				if (param.get("type").equals("float")) {
+					value.setDouble(i, random.nextFloat());
+				} else {
+					value.setDouble(i, random.nextInt(20));
+				}
+			}
+			param.put("value", value);
+		}
+		return newOp;
+	}
+
+	private static long benchRead(DTOperation dtOp, String par, int nIter,
+			boolean isLegacy) {
+		long t0 = System.nanoTime();
+		for (int i = 0; i < nIter; i++) {
+			if (isLegacy) {
+				legacyReadParams(dtOp, par);
+			} else {
+				DTOperation.readParams(dtOp, par);
+			}
+		}
+		return (System.nanoTime() - t0) / 1000000;
+	}
+
+	private static long benchWrite(DTOperation dtOp, int nIter,
+			boolean isLegacy) {
+		long t0 = System.nanoTime();
+		int len = 0;
+		for (int i = 0; i < nIter; i++) {
+			if (isLegacy) {
+				len += legacyWriteParams(dtOp).length();
+			} else {
+				len += DTOperation.writeParams(dtOp).length();
+			}
+		}
+		if (len == 0) {
+			System.out.println("empty params");
+		}
+		return (System.nanoTime() - t0) / 1000000;
+	}
+
+	// ---- previous implementation (hexadecimal strings) ----
+
+	private static void legacyReadParams(DTOperation dtOp, String par) {
+		if (par.startsWith("gz")) {
+			par = par.substring(4); // remove gz##
+			byte[] bufferBase64 = DatatypeConverter.parseBase64Binary(par);
+			byte[] decomp = DTOperation.decompress(bufferBase64);
+			par = DatatypeConverter.printHexBinary(decomp);
+		}
+		for (DTParameter param : dtOp.values()) {
+			String paramString = par.substring(0, 8 * param.length);
+			legacyGetValue(param, paramString);
+			par = par.substring(8 * param.length, par.length());
+		}
+	}
+
+	private static void legacyGetValue(DTParameter param, String s) {
+		DTValue value = new DTValue(param.length);
+		String remain = s;
+		for (int i = 0; i < param.length; i++) {
+			s = remain.substring(6, 8) + remain.substring(4, 6)
+					+ remain.substring(2, 4) + remain.substring(0, 2);
+			remain = remain.substring(8, remain.length());
+			if (param.get("type").equals("float")) {
+				Integer intValue = Long.valueOf(s, 16).intValue();
+				value.setDouble(i, Float.intBitsToFloat(intValue));
+			} else {
+				Integer intValue = Integer.valueOf(s, 16).intValue();
+				value.setDouble(i, intValue);
+			}
+		}
+		param.put("value", value);
+	}
+
+	private static String legacyHex(DTOperation dtOp) {
+		String params = "";
+		for (DTParameter param : dtOp.values()) {
+			DTValue dtVal = (DTValue) param.get("value");
+			for (int i = 0; i < param.length; i++) {
+				int vali;
+				if (param.get("type").equals("float")) {
+					vali = Float.floatToIntBits((float) dtVal.getDouble(i));
+				} else {
+					vali = (int) dtVal.getDouble(i);
+				}
+				String s = String.format("%08x", vali);
+				params = params + s.substring(6, 8) + s.substring(4, 6)
+						+ s.substring(2, 4) + s.substring(0, 2);
+			}
+		}
+		return params;
+	}
+
+	private static String legacyWriteParams(DTOperation dtOp) {
+		String params = legacyHex(dtOp);
+		if (params.length() > 100) {
+			byte[] paramsBytes = DatatypeConverter.parseHexBinary(params);
+			byte[] paramsBytesCompressed = DTOperation.compress(paramsBytes);
+			String paramsCompressed = DatatypeConverter
+					.printBase64Binary(paramsBytesCompressed);
+			int compFactor = Math.min(99, paramsBytes.length
+					/ paramsBytesCompressed.length + 1);
+			params = "gz" + String.format("%02d", compFactor)
+					+ paramsCompressed;
+		}
+		return params;
+	}
+
+}
@@ -0,0 +1,292 @@
+package operations;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Locale;
+import java.util.Random;
+
+import utils.FileOp;
+import xmp.XmpDTConf;
+
+public class InterpXmpBench {
+
+	/**
+	 * InterpXmpBench : throughput and allocation rate of the core paths
+	 * (XmpDTConf parsing, DTOperation.readOperation, DTParameter read/write,
+	 * XmpFile.write, DTConfList.interpAllParam) on generated sequences of 10,
+	 * 1k and 10k frames with histories of 5 to 40 modules (exposure,
+	 * tonecurve, colorzones, bilat), interpAllParam counted in frames. One
+	 * keyframe every 100 frames is written in a temporary folder. Run with
+	 * bench/ and src/ in the classpath: java operations.InterpXmpBench
+	 * [seconds per measure] [frames,frames...] [modules,modules...]
+	 */
+
+	private static final String[][] MODULES = { { "exposure", "3" },
+			{ "tonecurve", "4" }, { "colorzones", "3" }, { "bilat", "1" } };
+	private static final int KEY_STEP = 100;
+
+	private static double seconds = 1.0;
+	private static ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+	private static PrintStream out = System.out;
+
+	// one entry point of the benchmark, run() is one operation
+	private static abstract class Op {
+		abstract void run();
+	}
+
+	public static void main(String[] args) throws IOException {
+		if (args.length > 0) {
+			seconds = Double.parseDouble(args[0]);
+		}
+		int[] frameCounts = (args.length > 1) ? parseInts(args[1])
+				: new int[] { 10, 1000, 10000 };
+		int[] moduleCounts = (args.length > 2) ? parseInts(args[2])
+				: new int[] { 5, 20, 40 };
+
+		// messages of the measured code (file saved, only 2 keyframes...) are
+		// not printed
+		PrintStream mute = new PrintStream(new OutputStream() {
+			@Override
+			public void write(int b) {
+			}
+		});
+		System.setOut(mute);
+		System.setErr(mute);
+		out.println(String.format("%-26s %6s %5s %12s %12s %12s",
+				"entry point", "frames", "mods", "ops/s", "alloc MB/s",
+				"alloc/op"));
+		for (int nFrames : frameCounts) {
+			for (int nModules : moduleCounts) {
+				bench(nFrames, nModules);
+			}
+		}
+	}
+
+	private static void bench(int nFrames, final int nModules)
+			throws IOException {
+		File keyFolder = Files.createTempDirectory("tldt-bench-keys")
+				.toFile();
+		final File outFolder = Files.createTempDirectory("tldt-bench-out")
+				.toFile();
+		try {
+			final String[] keyFiles = writeKeyframes(keyFolder, nFrames,
+					nModules);
+			final DTConfList keys = new DTConfList();
+			keys.addXmpFromFolder(keyFolder.getPath());
+			final XmpDTConf xmpConf = keys.first().xmpConf;
+			final DTOperation[] ops = keys.first().values().toArray(
+					new DTOperation[0]);
+			final String[] params = new String[ops.length];
+			for (int i = 0; i < ops.length; i++) {
+				params[i] = DTOperation.writeParams(ops[i]);
+			}
+			String label = nFrames + " " + nModules;
+
+			measure("XmpDTConf parse", label, 1, new Op() {
+				private int i = 0;
+
+				@Override
+				void run() {
+					new XmpDTConf(keyFiles[this.i++ % keyFiles.length]);
+				}
+			});
+			measure("DTOperation.readOperation", label, 1, new Op() {
+				// all modules of one history
+				@Override
+				void run() {
+					for (int i = 0; i < xmpConf.histOp.size(); i++) {
+						DTOperation.readOperation(xmpConf.histOp.get(i),
+								xmpConf.histVer.get(i), xmpConf.histEna.get(i),
+								xmpConf.histPar.get(i), xmpConf.blopVer.get(i),
+								xmpConf.blopPar.get(i), xmpConf.multPrio.get(i),
+								xmpConf.multName.get(i));
+					}
+				}
+			});
+			measure("DTParameter.read", label, 1, new Op() {
+				@Override
+				void run() {
+					for (int i = 0; i < ops.length; i++) {
+						DTOperation.readParams(ops[i], params[i]);
+					}
+				}
+			});
+			measure("DTParameter.write", label, 1, new Op() {
+				@Override
+				void run() {
+					for (int i = 0; i < ops.length; i++) {
+						DTOperation.writeParams(ops[i]);
+					}
+				}
+			});
+			measure("XmpFile.write", label, 1, new Op() {
+				@Override
+				void run() {
+					xmpConf.write(outFolder.getPath());
+				}
+			});
+			// throughput in frames/s
+			measure("DTConfList.interpAllParam", label, nFrames, new Op() {
+				@Override
+				void run() {
+					keys.interpAllParam(outFolder.getPath(), "spline");
+				}
+			});
+		} finally {
+			FileOp.deleteRecursive(keyFolder);
+			FileOp.deleteRecursive(outFolder);
+		}
+	}
+
+	private static void measure(String name, String label, int unitsPerOp,
+			Op op) {
+		// warmup, then as many operations as possible in the given time
+		long end = System.nanoTime() + (long) (seconds * 0.5e9);
+		do {
+			op.run();
+		} while (System.nanoTime() < end);
+
+		long alloc0 = allocatedBytes();
+		long t0 = System.nanoTime();
+		end = t0 + (long) (seconds * 1e9);
+		long n = 0;
+		do {
+			op.run();
+			n += 1;
+		} while (System.nanoTime() < end);
+		long t = System.nanoTime() - t0;
+		long alloc = allocatedBytes() - alloc0;
+
+		double units = (double) n * unitsPerOp;
+		String[] frameMods = label.split(" ");
+		out.println(String.format(Locale.US,
+				"%-26s %6s %5s %12.1f %12s %12s", name, frameMods[0],
+				frameMods[1], units * 1e9 / t, (alloc0 < 0) ? "-"
+						: String.format(Locale.US, "%.1f", alloc / 1e6
+								/ (t / 1e9)), (alloc0 < 0) ? "-"
+						: bytes(alloc / units)));
+	}
+
+	private static long allocatedBytes() {
+		// bytes allocated by this thread (HotSpot), -1 if not available
+		if (threads instanceof com.sun.management.ThreadMXBean) {
+			return ((com.sun.management.ThreadMXBean) threads)
+					.getThreadAllocatedBytes(Thread.currentThread().getId());
+		}
+		return -1;
+	}
+
+	private static String bytes(double b) {
+		if (b >= 1e6) {
+			return String.format(Locale.US, "%.1f MB", b / 1e6);
+		} else if (b >= 1e3) {
+			return String.format(Locale.US, "%.1f kB", b / 1e3);
+		}
+		return String.format(Locale.US, "%.0f B", b);
+	}
+
+	// ---- fixtures ----
+
+	private static String[] writeKeyframes(File folder, int nFrames,
+			int nModules) throws IOException {
+		// keyframes (rated) at frames 1, 1+KEY_STEP, ... and nFrames
+		Random random = new Random(1);
+		ArrayList<String> files = new ArrayList<String>();
+		for (int i = 1; i <= nFrames; i++) {
+			if (i != 1 && i != nFrames && (i - 1) % KEY_STEP != 0) {
+				continue;
+			}
+			String src = String.format("IMG_%05d.CR2", i);
+			File f = new File(folder, src + ".xmp");
+			FileWriter fw = new FileWriter(f);
+			fw.write(xmp(src, nModules, random));
+			fw.close();
+			files.add(f.getPath());
+		}
+		return files.toArray(new String[files.size()]);
+	}
+
+	private static String xmp(String src, int nModules, Random random) {
+		StringBuilder ver = new StringBuilder();
+		StringBuilder ena = new StringBuilder();
+		StringBuilder op = new StringBuilder();
+		StringBuilder par = new StringBuilder();
+		StringBuilder blendPar = new StringBuilder();
+		StringBuilder blendVer = new StringBuilder();
+		StringBuilder prio = new StringBuilder();
+		StringBuilder name = new StringBuilder();
+		for (int m = 0; m < nModules; m++) {
+			String[] module = MODULES[m % MODULES.length];
+			li(ver, module[1]);
+			li(ena, "1");
+			li(op, module[0]);
+			li(par, DTOperation.writeParams(randomOperation(module[0],
+					module[1], random)));
+			li(blendPar, "gz11eJxjZGBgkGAAgRNODESDBnsIHll8ANNtBAI=");
+			li(blendVer, "4");
+			li(prio, "0");
+			li(name, (m == 0) ? "" : Integer.toString(m));
+		}
+		return "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n"
+				+ "<x:xmpmeta xmlns:x=\"adobe:ns:meta/\" x:xmptk=\"XMP Core 4.4.0-Exiv2\">\n"
+				+ " <rdf:RDF xmlns:rdf=\"http://www.w3.org/1999/02/22-rdf-syntax-ns#\">\n"
+				+ "  <rdf:Description rdf:about=\"\" xmlns:xmp=\"http://ns.adobe.com/xap/1.0/\""
+				+ " xmlns:xmpMM=\"http://ns.adobe.com/xap/1.0/mm/\" xmlns:darktable=\"http://darktable.sf.net/\"\n"
+				+ "    xmp:Rating=\"1\" xmpMM:DerivedFrom=\"" + src
+				+ "\" darktable:history_end=\"" + nModules + "\">\n"
+				+ seq("history_modversion", ver)
+				+ seq("history_enabled", ena)
+				+ seq("history_operation", op)
+				+ seq("history_params", par)
+				+ seq("blendop_params", blendPar)
+				+ seq("blendop_version", blendVer)
+				+ seq("multi_priority", prio) + seq("multi_name", name)
+				+ "  </rdf:Description>\n" + " </rdf:RDF>\n"
+				+ "</x:xmpmeta>\n";
+	}
+
+	private static DTOperation randomOperation(String name, String version,
+			Random random) {
+		DTOperation dtOp = DTOperation.newOperation(name);
+		dtOp.version = version;
+		dtOp.addParam();
+		for (DTParameter param : dtOp.values()) {
+			DTValue value = new DTValue(param.length);
+			for (int i = 0; i < param.length; i++) {
+				if (param.get("type").equals("float")) {
+					value.setDouble(i, random.nextFloat());
+				} else {
+					value.setDouble(i, random.nextInt(6));
+				}
+			}
+			param.put("value", value);
+		}
+		return dtOp;
+	}
+
+	private static void li(StringBuilder sb, String value) {
+		sb.append("<rdf:li>").append(value).append("</rdf:li>\n");
+	}
+
+	private static String seq(String name, StringBuilder items) {
+		return "   <darktable:" + name + "><rdf:Seq>\n" + items
+				+ "</rdf:Seq></darktable:" + name + ">\n";
+	}
+
+	private static int[] parseInts(String s) {
+		String[] items = s.split(",");
+		int[] values = new int[items.length];
+		for (int i = 0; i < items.length; i++) {
+			values[i] = Integer.parseInt(items[i].trim());
+		}
+		return values;
+	}
+
+}
@@ -0,0 +1,69 @@
+package utils;
+
+public class ProcessRunnerCancelCheck {
+
+	/**
+	 * ProcessRunnerCancelCheck : check of ProcessRunner cancellation (unix
+	 * commands sh, sleep, pgrep). A runner around a sleep command is
+	 * interrupted: run must return at once, cancelled, and the sleep must be
+	 * stopped; a sleep ignoring SIGTERM must be killed after the grace
+	 * period. The output of a command is still read: java
+	 * utils.ProcessRunnerCancelCheck
+	 */
+
+	public static void main(String[] args) throws InterruptedException {
+		ProcessRunner echo = new ProcessRunner("sh", "-c",
+				"echo first; echo last");
+		echo.isEcho = false;
+		ProcessResult result = echo.run();
+		check("echo: exit code " + result.exitCode, result.exitCode == 0);
+		check("echo: last line " + result.lastLine,
+				result.lastLine.equals("last"));
+		check("echo: stdout " + result.stdout,
+				result.stdout.equals("first\nlast\n"));
+
+		checkInterrupted("sleep", new String[] { "sleep", "37" },
+				"sleep 37", 2000);
+		checkInterrupted("sleep ignoring SIGTERM", new String[] { "sh",
+				"-c", "trap '' TERM; exec sleep 38" }, "sleep 38", 10000);
+		System.out.println("ProcessRunner cancellation: ok");
+	}
+
+	private static void checkInterrupted(String name, String[] cmd,
+			String pattern, long maxMillis) throws InterruptedException {
+		final ProcessRunner runner = new ProcessRunner(cmd);
+		runner.isEcho = false;
+		final ProcessResult[] result = new ProcessResult[1];
+		Thread caller = new Thread() {
+			@Override
+			public void run() {
+				result[0] = runner.run();
+			}
+		};
+		caller.start();
+		Thread.sleep(500);
+		check(name + ": running before interrupt", isRunning(pattern));
+
+		long t0 = System.nanoTime();
+		caller.interrupt();
+		caller.join(maxMillis + 5000);
+		long millis = (System.nanoTime() - t0) / 1000000;
+		check(name + ": run returned after interrupt", !caller.isAlive());
+		check(name + ": returned in " + millis + " ms", millis <= maxMillis);
+		check(name + ": result cancelled", result[0].isCancelled);
+		check(name + ": process stopped", !isRunning(pattern));
+	}
+
+	private static boolean isRunning(String pattern) {
+		ProcessRunner pgrep = new ProcessRunner("pgrep", "-f", "^" + pattern);
+		pgrep.isEcho = false;
+		return pgrep.run().exitCode == 0;
+	}
+
+	private static void check(String name, boolean ok) {
+		if (!ok) {
+			throw new AssertionError(name);
+		}
+	}
+
+}
@@ -23,6 +23,18 @@ public class Cli {
 	public boolean isExportMovie;
 	public boolean isDeflick;
 	public int deflickLpFiltMinNum;
+	public boolean isDeflickOctave;
+	public int deflickProbeSize;
+	public boolean isDeflickPreview;
+	public boolean isDeflickCalibModel;
+	public double deflickSkipTol;
+	public boolean isDeflickGain;
+	public int renderJobs;
+	public int renderBatch;
+	public double movieFps;
+	public int movieQuality;
+	public boolean isMovieMencoder;
+	public boolean isStreaming;
 
 	public Cli(String[] args) throws JSAPException {
 		super();
@@ -40,6 +52,25 @@ public class Cli {
 		this.isExportMovie = config.getBoolean("isExportMovie");
 		this.isDeflick = config.getBoolean("isDeflick");
 		this.deflickLpFiltMinNum = config.getInt("deflickLpFiltMinNum");
+		this.isDeflickOctave = config.getBoolean("isDeflickOctave");
+		this.deflickProbeSize = config.getInt("deflickProbeSize");
+		this.isDeflickPreview = config.getBoolean("isDeflickPreview");
+		this.isDeflickCalibModel = config.getBoolean("isDeflickCalibModel");
+		this.deflickSkipTol = Math.max(0, config.getDouble("deflickSkipTol"));
+		this.isDeflickGain = config.getBoolean("isDeflickGain");
+		this.renderJobs = config.getInt("renderJobs");
+		if (this.renderJobs <= 0) {
+			// default: one darktable-cli job per core
+			this.renderJobs = Runtime.getRuntime().availableProcessors();
+		}
+		this.renderBatch = Math.max(1, config.getInt("renderBatch"));
+		this.movieFps = config.getDouble("movieFps");
+		if (this.movieFps <= 0) {
+			this.movieFps = 25;
+		}
+		this.movieQuality = config.getInt("movieQuality");
+		this.isMovieMencoder = config.getBoolean("isMovieMencoder");
+		this.isStreaming = config.getBoolean("isStreaming");
 
 	}
 
@@ -136,6 +167,104 @@ public class Cli {
 	    		.setLongFlag("deflick-lpFiltMinNum");
 	    optDeflickLPMin.setHelp("Deflickering Low-Pass filter images number");
 	    this.jsap.registerParameter(optDeflickLPMin);
+
+	    QualifiedSwitch optIsDeflickOctave = (QualifiedSwitch) 
+	    		new QualifiedSwitch("isDeflickOctave")
+	    		.setShortFlag('O')
+	    		.setLongFlag("deflick-octave");
+	    optIsDeflickOctave.setHelp("Deflickering filter computed by octave instead of java");
+	    this.jsap.registerParameter(optIsDeflickOctave);
+
+	    FlaggedOption optDeflickProbeSize = new FlaggedOption("deflickProbeSize")
+	    		.setStringParser(JSAP.INTEGER_PARSER)
+	    		.setDefault("256") 
+	    		.setRequired(false) 
+	    		.setShortFlag('P') 
+	    		.setLongFlag("deflick-probe-size");
+	    optDeflickProbeSize.setHelp("Size (px) of the renders measuring deflickering luminance");
+	    this.jsap.registerParameter(optDeflickProbeSize);
+
+	    QualifiedSwitch optIsDeflickPreview = (QualifiedSwitch) 
+	    		new QualifiedSwitch("isDeflickPreview")
+	    		.setShortFlag('p')
+	    		.setLongFlag("deflick-preview");
+	    optIsDeflickPreview.setHelp("Deflickering luminance measured on the JPG preview embedded in RAW files (no rendering)");
+	    this.jsap.registerParameter(optIsDeflickPreview);
+
+	    QualifiedSwitch optIsDeflickCalibModel = (QualifiedSwitch) 
+	    		new QualifiedSwitch("isDeflickCalibModel")
+	    		.setShortFlag('C')
+	    		.setLongFlag("deflick-calib-model");
+	    optIsDeflickCalibModel.setHelp("Deflickering calibration from a 2^EV model checked on 3 renders (instead of 11 renders)");
+	    this.jsap.registerParameter(optIsDeflickCalibModel);
+
+	    FlaggedOption optDeflickSkipTol = new FlaggedOption("deflickSkipTol")
+	    		.setStringParser(JSAP.DOUBLE_PARSER)
+	    		.setDefault("0") 
+	    		.setRequired(false) 
+	    		.setShortFlag('T') 
+	    		.setLongFlag("deflick-skip-tol");
+	    optDeflickSkipTol.setHelp("Deflickering correction (EV) under which the first render is kept, frames measured at export size (0: all frames rendered again)");
+	    this.jsap.registerParameter(optDeflickSkipTol);
+
+	    QualifiedSwitch optIsDeflickGain = (QualifiedSwitch) 
+	    		new QualifiedSwitch("isDeflickGain")
+	    		.setShortFlag('G')
+	    		.setLongFlag("deflick-gain");
+	    optIsDeflickGain.setHelp("Deflickering applied as a gain on 16-bit PNG frames rendered without deflickering (no second darktable-cli development)");
+	    this.jsap.registerParameter(optIsDeflickGain);
+
+	    // optional parallel rendering
+	    FlaggedOption optRenderJobs = new FlaggedOption("renderJobs")
+	    		.setStringParser(JSAP.INTEGER_PARSER)
+	    		.setDefault("0") 
+	    		.setRequired(false) 
+	    		.setShortFlag('J') 
+	    		.setLongFlag("jobs");
+	    optRenderJobs.setHelp("Number of parallel darktable-cli jobs (0: number of cores)");
+	    this.jsap.registerParameter(optRenderJobs);
+
+	    FlaggedOption optRenderBatch = new FlaggedOption("renderBatch")
+	    		.setStringParser(JSAP.INTEGER_PARSER)
+	    		.setDefault("8") 
+	    		.setRequired(false) 
+	    		.setShortFlag('K') 
+	    		.setLongFlag("batch");
+	    optRenderBatch.setHelp("Frames rendered by each darktable-cli (1: one darktable-cli per frame)");
+	    this.jsap.registerParameter(optRenderBatch);
+
+	    // optional movie encoding
+	    FlaggedOption optMovieFps = new FlaggedOption("movieFps")
+	    		.setStringParser(JSAP.DOUBLE_PARSER)
+	    		.setDefault("25") 
+	    		.setRequired(false) 
+	    		.setShortFlag('F') 
+	    		.setLongFlag("fps");
+	    optMovieFps.setHelp("Frame rate of the timelapse movie");
+	    this.jsap.registerParameter(optMovieFps);
+
+	    FlaggedOption optMovieQuality = new FlaggedOption("movieQuality")
+	    		.setStringParser(JSAP.INTEGER_PARSER)
+	    		.setDefault("0") 
+	    		.setRequired(false) 
+	    		.setShortFlag('Q') 
+	    		.setLongFlag("movie-quality");
+	    optMovieQuality.setHelp("JPG quality (1-100) of the movie frames (0: frames kept as rendered)");
+	    this.jsap.registerParameter(optMovieQuality);
+
+	    QualifiedSwitch optIsMovieMencoder = (QualifiedSwitch) 
+	    		new QualifiedSwitch("isMovieMencoder")
+	    		.setShortFlag('M')
+	    		.setLongFlag("movie-mencoder");
+	    optIsMovieMencoder.setHelp("Timelapse movie encoded by mencoder instead of java");
+	    this.jsap.registerParameter(optIsMovieMencoder);
+
+	    QualifiedSwitch optIsStreaming = (QualifiedSwitch) 
+	    		new QualifiedSwitch("isStreaming")
+	    		.setShortFlag('S')
+	    		.setLongFlag("streaming");
+	    optIsStreaming.setHelp("Frames generated, written and rendered one by one, never all in memory (not with deflickering)");
+	    this.jsap.registerParameter(optIsStreaming);
 	    
 	    // extra arguments
 	    UnflaggedOption optRemain = new UnflaggedOption("extra")
@@ -0,0 +1,220 @@
+package core;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import deflick.LuminanceStats;
+
+public class AnalysisCache {
+
+	/**
+	 * AnalysisCache : luminance measures of a project, in a binary file of
+	 * fixed size records "key digest, signature digest, mean, percentiles,
+	 * exposure, pixels, time", keyed like RenderManifest (key: source file,
+	 * signature: everything the measure depends on). The file is memory
+	 * mapped when opened, only digests are read; records are appended as
+	 * soon as a frame is measured, last record of a key wins. Frames added
+	 * or removed do not change the key of the other frames.
+	 */
+
+	private static final byte[] MAGIC = "TLDTLUM1".getBytes(StandardCharsets.US_ASCII);
+	private static final int RECORD = 88; // 2 * 16 + 5 * 8 + 2 * 8
+
+	// one measure of the cache (values unknown: NaN)
+	public static class Entry {
+		public double mean;
+		public double p05; // 5 % of the pixels below
+		public double p50;
+		public double p95;
+		public double exposure; // EV of the frame when measured
+		public long count; // nb of sampled pixels
+		public long measuredAt; // ms since epoch
+
+		public Entry(double mean) {
+			super();
+			this.mean = mean;
+			this.p05 = Double.NaN;
+			this.p50 = Double.NaN;
+			this.p95 = Double.NaN;
+			this.exposure = Double.NaN;
+			this.count = 0;
+			this.measuredAt = System.currentTimeMillis();
+		}
+
+		public Entry(LuminanceStats stats) {
+			this(stats.mean);
+			if (stats.count > 0) {
+				this.p05 = stats.percentile(5);
+				this.p50 = stats.percentile(50);
+				this.p95 = stats.percentile(95);
+			}
+			this.count = stats.count;
+		}
+	}
+
+	private String cacheFile;
+	private RandomAccessFile raf;
+	private FileChannel channel;
+	private MappedByteBuffer mapped; // records when opened
+	private Map<ByteBuffer, Integer> mappedOffsets; // key => record offset
+	private Map<ByteBuffer, byte[]> appended; // key => record written since
+
+	public AnalysisCache(String cacheFile) throws IOException {
+		super();
+		this.cacheFile = cacheFile;
+		this.appended = new HashMap<ByteBuffer, byte[]>();
+		int nRecords = this.open();
+		if (nRecords > 2 * this.mappedOffsets.size() + 1024) {
+			// mostly old measures: written again with the last ones only
+			this.compact();
+			this.open();
+		}
+	}
+
+	private int open() throws IOException {
+		// map the file, index keys (a record truncated by an interrupted run
+		// is dropped), returns the number of records
+		this.raf = new RandomAccessFile(this.cacheFile, "rw");
+		this.channel = this.raf.getChannel();
+		this.mappedOffsets = new HashMap<ByteBuffer, Integer>();
+		long size = this.channel.size();
+		byte[] magic = new byte[MAGIC.length];
+		if (size >= MAGIC.length) {
+			this.channel.read(ByteBuffer.wrap(magic), 0);
+		}
+		if (!Arrays.equals(magic, MAGIC)) {
+			// new file or another format: measures are done again
+			this.channel.truncate(0);
+			this.channel.write(ByteBuffer.wrap(MAGIC), 0);
+			size = MAGIC.length;
+		}
+		int nRecords = (int) ((size - MAGIC.length) / RECORD);
+		long end = MAGIC.length + (long) nRecords * RECORD;
+		this.channel.truncate(end);
+		this.channel.position(end);
+		this.mapped = this.channel.map(FileChannel.MapMode.READ_ONLY, 0, end);
+		for (int i = 0; i < nRecords; i++) {
+			int offset = MAGIC.length + i * RECORD;
+			byte[] key = new byte[16];
+			this.mapped.position(offset);
+			this.mapped.get(key);
+			this.mappedOffsets.put(ByteBuffer.wrap(key), offset);
+		}
+		return nRecords;
+	}
+
+	private void compact() throws IOException {
+		File tmp = new File(this.cacheFile + ".tmp");
+		RandomAccessFile out = new RandomAccessFile(tmp, "rw");
+		try {
+			out.setLength(0);
+			out.write(MAGIC);
+			byte[] record = new byte[RECORD];
+			for (int offset : this.mappedOffsets.values()) {
+				this.mapped.position(offset);
+				this.mapped.get(record);
+				out.write(record);
+			}
+		} finally {
+			out.close();
+		}
+		this.close();
+		Files.move(tmp.toPath(), new File(this.cacheFile).toPath(),
+				StandardCopyOption.REPLACE_EXISTING);
+	}
+
+	/**
+	 * measure of a key with the same signature
+	 *
+	 * @param key
+	 *            : measured item (source file, source file#preview...)
+	 * @param signature
+	 *            : inputs of the measure (see RenderManifest.signature)
+	 * @return measure, null if not in the cache or other inputs
+	 */
+	public synchronized Entry get(String key, String signature) {
+		ByteBuffer record;
+		ByteBuffer k = ByteBuffer.wrap(digest(key));
+		byte[] recent = this.appended.get(k);
+		if (recent != null) {
+			record = ByteBuffer.wrap(recent);
+		} else {
+			Integer offset = this.mappedOffsets.get(k);
+			if (offset == null) {
+				return null;
+			}
+			record = this.mapped.duplicate();
+			record.position(offset);
+			record = record.slice();
+		}
+		byte[] sig = new byte[16];
+		record.position(16);
+		record.get(sig);
+		if (!Arrays.equals(sig, digest(signature))) {
+			return null;
+		}
+		Entry entry = new Entry(record.getDouble());
+		entry.p05 = record.getDouble();
+		entry.p50 = record.getDouble();
+		entry.p95 = record.getDouble();
+		entry.exposure = record.getDouble();
+		entry.count = record.getLong();
+		entry.measuredAt = record.getLong();
+		return entry;
+	}
+
+	public synchronized void record(String key, String signature, Entry entry)
+			throws IOException {
+		ByteBuffer record = ByteBuffer.allocate(RECORD);
+		byte[] k = digest(key);
+		record.put(k).put(digest(signature));
+		record.putDouble(entry.mean).putDouble(entry.p05)
+				.putDouble(entry.p50).putDouble(entry.p95)
+				.putDouble(entry.exposure);
+		record.putLong(entry.count).putLong(entry.measuredAt);
+		record.flip();
+		// in the file at once: kept if the run is interrupted
+		while (record.hasRemaining()) {
+			this.channel.write(record);
+		}
+		this.appended.put(ByteBuffer.wrap(k), record.array());
+	}
+
+	public synchronized int size() {
+		int n = this.appended.size();
+		for (ByteBuffer k : this.mappedOffsets.keySet()) {
+			if (!this.appended.containsKey(k)) {
+				n += 1;
+			}
+		}
+		return n;
+	}
+
+	public synchronized void close() throws IOException {
+		this.channel.close();
+		this.raf.close();
+	}
+
+	private static byte[] digest(String s) {
+		try {
+			return MessageDigest.getInstance("MD5").digest(
+					s.getBytes(StandardCharsets.UTF_8));
+		} catch (NoSuchAlgorithmException e) {
+			// MD5 is in every JRE
+			throw new IllegalStateException(e);
+		}
+	}
+
+}
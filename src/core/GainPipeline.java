@@ -0,0 +1,174 @@
+package core;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import deflick.DeflickGain;
+
+public class GainPipeline {
+
+	/**
+	 * GainPipeline : deflickering applied to rendered frames in the pixel
+	 * domain, in two stages linked by a bounded queue. The render stage
+	 * (RenderFarm pool) renders frames without deflickering (renderFile,
+	 * 16-bit PNG), the gain stage scales each one (DeflickGain, tiles in
+	 * parallel) into its output (outFile, JPG) while next frames are
+	 * rendered: one decode/encode per frame instead of a new development.
+	 * The PNG of a frame is deleted once its output is written.
+	 */
+
+	private RenderFarm farm;
+	private DeflickGain gain;
+	private int queueSize;
+
+	public GainPipeline(RenderFarm farm, DeflickGain gain, int queueSize) {
+		super();
+		this.farm = farm;
+		this.gain = gain;
+		this.queueSize = Math.max(1, queueSize);
+	}
+
+	/**
+	 * render frames and apply their deflickering gain
+	 *
+	 * @param renderJobs
+	 *            : frames to render (renderFile: 16-bit PNG, with its
+	 *            coreOptions)
+	 * @param lumRatio
+	 *            : luminance after / before deflickering of each frame
+	 * @param manifest
+	 *            : frames done (gain applied) are recorded in it (could be
+	 *            null)
+	 * @return number of frames failed (render or gain)
+	 * @throws IOException
+	 */
+	public int run(List<RenderJob> renderJobs,
+			Map<RenderJob, Double> lumRatio, RenderManifest manifest)
+			throws IOException {
+		// frames whose gain failed are rendered again, as many times as
+		// failed renders (by this pipeline: the farm sees them done)
+		long tRender = 0;
+		long gainBusy = 0;
+		List<RenderJob> todo = renderJobs;
+		Set<RenderJob> gainFailed;
+		for (int pass = 0;; pass++) {
+			gainFailed = Collections
+					.newSetFromMap(new ConcurrentHashMap<RenderJob, Boolean>());
+			long[] times = this.runPass(todo, lumRatio, manifest, gainFailed);
+			tRender += times[0];
+			gainBusy += times[1];
+			if (gainFailed.isEmpty() || pass >= this.farm.getRetries()
+					|| Thread.currentThread().isInterrupted()) {
+				break;
+			}
+			todo = new ArrayList<RenderJob>();
+			for (RenderJob job : renderJobs) {
+				if (gainFailed.contains(job)) {
+					job.exitCode = -1;
+					job.isOutputTaken = false;
+					todo.add(job);
+				}
+			}
+			System.out.println("\nrendering again " + todo.size()
+					+ " frame(s) whose gain failed, attempt " + (pass + 2));
+		}
+		for (RenderJob job : gainFailed) {
+			job.exitCode = 1;
+		}
+
+		List<RenderJob> failed = new ArrayList<RenderJob>();
+		for (RenderJob job : renderJobs) {
+			if (!job.isDone()) {
+				failed.add(job);
+			}
+		}
+		int nDone = renderJobs.size() - failed.size();
+		System.out.println("\nrender stage    : " + renderJobs.size()
+				+ " frame(s), " + seconds(tRender) + " s");
+		System.out.println("gain stage      : " + nDone + " frame(s), "
+				+ ((gainBusy <= 0) ? "-" : String.format("%.2f", nDone
+						* 1e9 / gainBusy)) + " frames/s when busy, busy "
+				+ seconds(gainBusy) + " s, " + failed.size() + " failed");
+		return failed.size();
+	}
+
+	private long[] runPass(List<RenderJob> renderJobs,
+			final Map<RenderJob, Double> lumRatio,
+			final RenderManifest manifest, final Set<RenderJob> gainFailed)
+			throws IOException {
+		// one render of the frames with their gain, returns {render time,
+		// gain busy time}
+		final BlockingQueue<RenderJob> queue = new ArrayBlockingQueue<RenderJob>(
+				this.queueSize);
+
+		// gain stage: returns its busy time, frames failed in gainFailed
+		ExecutorService gainPool = Executors.newSingleThreadExecutor();
+		Future<Long> gainStage = gainPool.submit(new StageConsumer(queue) {
+			@Override
+			protected void process(RenderJob job) throws Exception {
+				job.isOutputTaken = true;
+				gain.apply(new File(job.renderFile), new File(job.outFile),
+						lumRatio.get(job));
+				new File(job.renderFile).delete();
+				if (manifest != null) {
+					manifest.record(job);
+				}
+			}
+
+			@Override
+			protected void failed(RenderJob job, Exception e) {
+				// no partial JPG; the PNG is rendered again in the next pass
+				System.err.println("deflickering gain failed: " + job.outFile
+						+ " (" + e + ")");
+				new File(job.outFile).delete();
+				new File(job.renderFile).delete();
+				gainFailed.add(job);
+			}
+		});
+
+		// render stage
+		long t0 = System.nanoTime();
+		try {
+			this.farm.render(renderJobs, null, queue);
+		} finally {
+			try {
+				queue.put(StageConsumer.END);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+		long tRender = System.nanoTime() - t0;
+
+		try {
+			return new long[] { tRender, gainStage.get() };
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("gain stage interrupted", e);
+		} catch (ExecutionException e) {
+			throw new IOException(e.getCause());
+		} finally {
+			gainPool.shutdownNow();
+			for (RenderJob job : renderJobs) {
+				// PNG of a frame failed
+				new File(job.renderFile).delete();
+			}
+		}
+	}
+
+	private static String seconds(long nanos) {
+		return String.format("%.1f", nanos / 1e9);
+	}
+
+}
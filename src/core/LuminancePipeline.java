@@ -0,0 +1,156 @@
+package core;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import deflick.LuminanceAnalyzer;
+import deflick.LuminanceStats;
+
+public class LuminancePipeline {
+
+	/**
+	 * LuminancePipeline : luminance of frames rendered by darktable-cli, in
+	 * two stages linked by a bounded queue. The render stage (RenderFarm
+	 * pool) puts each rendered frame in the queue, the luminance stage
+	 * decodes and measures it while next frames are rendered. Throughput of
+	 * each stage is printed at the end.
+	 */
+
+	private RenderFarm farm;
+	private LuminanceAnalyzer analyzer;
+	private int queueSize;
+	private int nAnalyzers;
+
+	public LuminancePipeline(RenderFarm farm, LuminanceAnalyzer analyzer,
+			int queueSize, int nAnalyzers) {
+		super();
+		this.farm = farm;
+		this.analyzer = analyzer;
+		this.queueSize = Math.max(1, queueSize);
+		this.nAnalyzers = Math.max(1, nAnalyzers);
+	}
+
+	/**
+	 * render and measure all jobs
+	 *
+	 * @param renderJobs
+	 *            : frames to render
+	 * @param manifest
+	 *            : frames rendered are recorded in it (could be null)
+	 * @param cache
+	 *            : frames measured are recorded in it, key: source file
+	 *            (could be null)
+	 * @return luminance of each frame done (frames failed, rendering or
+	 *         measure, are missing)
+	 * @throws IOException
+	 */
+	public Map<RenderJob, Double> run(List<RenderJob> renderJobs,
+			RenderManifest manifest, final AnalysisCache cache)
+			throws IOException {
+		final BlockingQueue<RenderJob> queue = new ArrayBlockingQueue<RenderJob>(
+				this.queueSize);
+		final Map<RenderJob, Double> luminance = new ConcurrentHashMap<RenderJob, Double>();
+		final int[] queueMax = { 0 };
+		final AtomicInteger lumFailed = new AtomicInteger();
+
+		// luminance stage: returns its busy time
+		ExecutorService lumPool = Executors.newFixedThreadPool(this.nAnalyzers);
+		List<Future<Long>> analyzers = new ArrayList<Future<Long>>();
+		for (int i = 0; i < this.nAnalyzers; i++) {
+			analyzers.add(lumPool.submit(new StageConsumer(queue) {
+				@Override
+				protected void process(RenderJob job) throws Exception {
+					synchronized (queueMax) {
+						queueMax[0] = Math.max(queueMax[0], queue.size() + 1);
+					}
+					LuminanceStats stats = analyzer.analyze(job.outFile);
+					if (cache != null) {
+						cache.record(job.srcFile, job.signature,
+								new AnalysisCache.Entry(stats));
+					}
+					luminance.put(job, stats.mean);
+				}
+
+				@Override
+				protected void failed(RenderJob job, Exception e) {
+					// frame missing in the result: its luminance is not
+					// available for deflickering
+					System.err.println("luminance measure failed: "
+							+ job.outFile + " (" + e + ")");
+					lumFailed.incrementAndGet();
+				}
+			}));
+		}
+
+		// render stage
+		long t0 = System.nanoTime();
+		int nFailed;
+		try {
+			nFailed = this.farm.render(renderJobs, manifest, queue);
+		} finally {
+			try {
+				queue.put(StageConsumer.END);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+		long tRender = System.nanoTime() - t0;
+
+		long lumBusy = 0;
+		try {
+			for (Future<Long> analyzer : analyzers) {
+				lumBusy += analyzer.get();
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("luminance stage interrupted", e);
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof IOException) {
+				throw (IOException) e.getCause();
+			}
+			throw new IOException(e.getCause());
+		} finally {
+			lumPool.shutdownNow();
+		}
+		long tTotal = System.nanoTime() - t0;
+
+		// per stage counters
+		long renderBusy = 0;
+		int nRendered = 0;
+		for (RenderJob job : renderJobs) {
+			renderBusy += job.renderNanos;
+			nRendered += job.isDone() ? 1 : 0;
+		}
+		System.out.println("\nrender stage    : " + nRendered + " frame(s), "
+				+ rate(nRendered, tRender) + " frames/s, busy "
+				+ seconds(renderBusy) + " s (" + this.farm.getJobs()
+				+ " job(s)), " + nFailed + " failed");
+		System.out.println("luminance stage : " + luminance.size()
+				+ " frame(s), " + rate(luminance.size(), lumBusy)
+				+ " frames/s when busy, busy " + seconds(lumBusy) + " s ("
+				+ this.nAnalyzers + " thread(s)), " + lumFailed.get()
+				+ " failed");
+		System.out.println("pipeline        : " + seconds(tTotal)
+				+ " s, queue max " + queueMax[0] + "/" + this.queueSize);
+		return luminance;
+	}
+
+	private static String rate(int n, long nanos) {
+		return (nanos <= 0) ? "-" : String.format("%.2f", n * 1e9 / nanos);
+	}
+
+	private static String seconds(long nanos) {
+		return String.format("%.1f", nanos / 1e9);
+	}
+
+}
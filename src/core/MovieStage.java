@@ -0,0 +1,232 @@
+package core;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import movie.FrameReorderBuffer;
+import movie.MovieEncoder;
+
+public class MovieStage {
+
+	/**
+	 * MovieStage : movie encoded while frames are rendered. The render stage
+	 * (RenderFarm pool) puts each rendered frame in a bounded queue, the
+	 * encoder stage gives them to the encoder in movie order (reorder
+	 * buffer), so the movie is closed just after the last frame. Frames
+	 * rendered for the movie only are deleted once encoded.
+	 */
+
+	private RenderFarm farm;
+	private MovieEncoder encoder;
+	private boolean isFrameDeleted; // frames not kept after encoding
+
+	public MovieStage(RenderFarm farm, MovieEncoder encoder) {
+		super();
+		this.farm = farm;
+		this.encoder = encoder;
+		this.isFrameDeleted = false;
+	}
+
+	public void setFrameDeleted(boolean isFrameDeleted) {
+		this.isFrameDeleted = isFrameDeleted;
+	}
+
+	/**
+	 * render frames and encode the movie of all frames
+	 *
+	 * @param movieJobs
+	 *            : all frames of the movie, in movie order
+	 * @param renderJobs
+	 *            : frames to render (others are already rendered)
+	 * @param manifest
+	 *            : frames done are recorded in it (could be null)
+	 * @return number of frames failed (missing in the movie)
+	 * @throws IOException
+	 */
+	public int run(List<RenderJob> movieJobs,
+			final List<RenderJob> renderJobs, final RenderManifest manifest)
+			throws IOException {
+		final FrameReorderBuffer buffer = new FrameReorderBuffer(
+				this.encoder, movieJobs.size());
+		buffer.setDeleteEncoded(this.isFrameDeleted);
+		Map<RenderJob, Integer> indexOf = new IdentityHashMap<RenderJob, Integer>();
+		for (int i = 0; i < movieJobs.size(); i++) {
+			indexOf.put(movieJobs.get(i), i);
+		}
+		// frames already rendered are encoded first
+		Map<RenderJob, Boolean> isToRender = new IdentityHashMap<RenderJob, Boolean>();
+		for (RenderJob job : renderJobs) {
+			isToRender.put(job, true);
+		}
+		for (int i = 0; i < movieJobs.size(); i++) {
+			File frame = new File(movieJobs.get(i).outFile);
+			if (!isToRender.containsKey(movieJobs.get(i))) {
+				if (frame.exists()) {
+					buffer.put(i, frame);
+				} else {
+					buffer.skip(i);
+				}
+			}
+		}
+
+		final BlockingQueue<RenderJob> queue = this.newQueue();
+		return this.encode(buffer, Collections.synchronizedMap(indexOf),
+				queue, new Callable<Integer>() {
+					@Override
+					public Integer call() throws IOException {
+						return farm.render(renderJobs, manifest, queue);
+					}
+				});
+	}
+
+	/**
+	 * render frames given one by one and encode the movie, only frames in
+	 * progress are kept (see RenderFarm.renderStream)
+	 *
+	 * @param movieJobs
+	 *            : all frames of the movie, in movie order (could be
+	 *            generated on demand)
+	 * @param nFrames
+	 *            : number of frames of movieJobs
+	 * @param manifest
+	 *            : frames done are recorded in it, frames up to date are not
+	 *            rendered again (could be null)
+	 * @return number of frames failed (missing in the movie)
+	 * @throws IOException
+	 */
+	public int runStream(final Iterator<RenderJob> movieJobs, int nFrames,
+			final RenderManifest manifest) throws IOException {
+		FrameReorderBuffer buffer = new FrameReorderBuffer(this.encoder,
+				nFrames);
+		buffer.setDeleteEncoded(this.isFrameDeleted);
+		// index of the frames taken by the render stage, until encoded
+		final Map<RenderJob, Integer> indexOf = Collections
+				.synchronizedMap(new IdentityHashMap<RenderJob, Integer>());
+		final Iterator<RenderJob> indexedJobs = new Iterator<RenderJob>() {
+			private int next = 0;
+
+			@Override
+			public boolean hasNext() {
+				return movieJobs.hasNext();
+			}
+
+			@Override
+			public RenderJob next() {
+				RenderJob job = movieJobs.next();
+				indexOf.put(job, this.next++);
+				return job;
+			}
+
+			@Override
+			public void remove() {
+				throw new UnsupportedOperationException();
+			}
+		};
+
+		final BlockingQueue<RenderJob> queue = this.newQueue();
+		return this.encode(buffer, indexOf, queue, new Callable<Integer>() {
+			@Override
+			public Integer call() throws IOException {
+				return farm.renderStream(indexedJobs, manifest, queue);
+			}
+		});
+	}
+
+	private BlockingQueue<RenderJob> newQueue() {
+		return new ArrayBlockingQueue<RenderJob>(2 * this.farm.getJobs());
+	}
+
+	private int encode(final FrameReorderBuffer buffer,
+			final Map<RenderJob, Integer> indexOf,
+			final BlockingQueue<RenderJob> queue, Callable<Integer> renderStage)
+			throws IOException {
+		// encoder stage
+		ExecutorService encoderPool = Executors.newSingleThreadExecutor();
+		Future<Long> encoderStage = encoderPool.submit(new StageConsumer(
+				queue) {
+			private IOException error = null; // first failure of the movie
+
+			@Override
+			protected void process(RenderJob job) throws Exception {
+				Integer index = indexOf.remove(job);
+				if (this.error != null) {
+					return; // movie already failed: frames only taken
+				}
+				if (job.isDone()) {
+					job.isOutputTaken = true;
+					buffer.put(index, new File(job.outFile));
+				} else {
+					buffer.skip(index);
+				}
+			}
+
+			@Override
+			protected void failed(RenderJob job, Exception e) {
+				// the encoder could not take the frame: movie stopped,
+				// reported when the render stage ends
+				if (this.error == null) {
+					this.error = (e instanceof IOException) ? (IOException) e
+							: new IOException(e);
+				}
+			}
+
+			@Override
+			protected void finish() throws IOException {
+				if (this.error != null) {
+					throw this.error;
+				}
+			}
+		});
+
+		// render stage
+		int nFailed;
+		try {
+			nFailed = renderStage.call();
+		} catch (IOException e) {
+			throw e;
+		} catch (Exception e) {
+			throw new IOException(e);
+		} finally {
+			try {
+				queue.put(StageConsumer.END);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+		long tRender = System.nanoTime();
+
+		try {
+			encoderStage.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("encoder stage interrupted", e);
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof IOException) {
+				throw (IOException) e.getCause();
+			}
+			throw new IOException(e.getCause());
+		} finally {
+			encoderPool.shutdownNow();
+		}
+		buffer.finish();
+		this.encoder.close();
+		System.out.println("movie stage     : reorder buffer max "
+				+ buffer.getMaxPending() + " frame(s), movie closed "
+				+ String.format("%.1f", (System.nanoTime() - tRender) / 1e9)
+				+ " s after the last render");
+		return nFailed;
+	}
+
+}
@@ -0,0 +1,481 @@
+package core;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import utils.FileOp;
+import utils.ProcessResult;
+
+public class RenderFarm {
+
+	/**
+	 * RenderFarm : bounded pool of darktable-cli workers. Each worker owns a
+	 * temporary config dir (darktable locks its library), frames keep their
+	 * order and exit code, failed frames only are rendered again. A frame
+	 * could be stopped after a timeout (then failed), interrupting the
+	 * calling thread cancels all running darktable-cli. Consecutive frames
+	 * could be rendered by the same darktable-cli (batch, several input
+	 * files with their XMP as sidecar) to start it less often.
+	 */
+
+	private String darktablecliBin;
+	private int jobs;
+	private int retries;
+	private long timeoutMillis; // per frame, 0: no timeout
+	private int batchSize; // frames per darktable-cli
+	private volatile boolean isBatchBroken; // batches render nothing
+
+	public RenderFarm(String darktablecliBin, int jobs, int retries) {
+		super();
+		this.darktablecliBin = darktablecliBin;
+		this.jobs = Math.max(1, jobs);
+		this.retries = Math.max(0, retries);
+		this.timeoutMillis = 0;
+		this.batchSize = 1;
+		this.isBatchBroken = false;
+	}
+
+	public void setTimeout(long timeoutMillis) {
+		this.timeoutMillis = Math.max(0, timeoutMillis);
+	}
+
+	public void setBatchSize(int batchSize) {
+		this.batchSize = Math.max(1, batchSize);
+	}
+
+	public static boolean isMultiInput(String darktableVersion) {
+		// several input files per darktable-cli since darktable 3.0
+		if (darktableVersion == null) {
+			return false;
+		}
+		Matcher m = Pattern.compile("(\\d+)\\.(\\d+)").matcher(
+				darktableVersion);
+		return m.find() && Integer.parseInt(m.group(1)) >= 3;
+	}
+
+	public int getJobs() {
+		return this.jobs;
+	}
+
+	public int getRetries() {
+		return this.retries;
+	}
+
+	/**
+	 * render all jobs, retrying failed ones
+	 *
+	 * @param renderJobs
+	 *            : frames to render, in output order
+	 * @param manifest
+	 *            : frames done are recorded in it (could be null)
+	 * @param doneQueue
+	 *            : frames done are put in it as soon as rendered, for a next
+	 *            processing stage (could be null). Workers wait if it is full.
+	 * @return number of frames still failed after all retries
+	 * @throws IOException
+	 */
+	public int render(List<RenderJob> renderJobs, RenderManifest manifest,
+			BlockingQueue<RenderJob> doneQueue) throws IOException {
+		// one config dir per worker slot
+		int nWorkers = Math.min(this.jobs, Math.max(1, renderJobs.size()));
+		BlockingQueue<File> configDirs = new ArrayBlockingQueue<File>(nWorkers);
+		for (int i = 0; i < nWorkers; i++) {
+			configDirs.add(Files.createTempDirectory("tldt-dtconf").toFile());
+		}
+		ExecutorService pool = Executors.newFixedThreadPool(nWorkers);
+
+		List<RenderJob> todo = renderJobs;
+		try {
+			for (int pass = 0; pass <= this.retries && !todo.isEmpty()
+					&& !Thread.currentThread().isInterrupted(); pass++) {
+				if (pass > 0) {
+					System.out.println("\nrendering again " + todo.size()
+							+ " failed frame(s), attempt " + (pass + 1));
+				}
+				todo = this.renderPass(pool, nWorkers, configDirs, manifest,
+						doneQueue, todo);
+			}
+		} finally {
+			pool.shutdown();
+			for (File configDir : configDirs) {
+				FileOp.deleteRecursive(configDir);
+			}
+		}
+
+		// per frame report, in frame order
+		for (RenderJob job : renderJobs) {
+			if (!job.isDone()) {
+				System.err.println("rendering failed (exit code "
+						+ job.exitCode + ", " + job.attempts + " attempts): "
+						+ job.outFile);
+			}
+		}
+		return todo.size();
+	}
+
+	public int render(List<RenderJob> renderJobs, RenderManifest manifest)
+			throws IOException {
+		return this.render(renderJobs, manifest, null);
+	}
+
+	public int render(List<RenderJob> renderJobs) throws IOException {
+		return this.render(renderJobs, null, null);
+	}
+
+	private List<RenderJob> renderPass(ExecutorService pool, int nWorkers,
+			final BlockingQueue<File> configDirs,
+			final RenderManifest manifest,
+			final BlockingQueue<RenderJob> doneQueue, List<RenderJob> todo) {
+		// submit all batches, then wait for them in submission order
+		List<List<RenderJob>> batches = this.batches(todo, nWorkers);
+		List<Future<?>> futures = new ArrayList<Future<?>>();
+		for (final List<RenderJob> batch : batches) {
+			futures.add(pool.submit(new Callable<Void>() {
+				@Override
+				public Void call() throws Exception {
+					renderBatch(batch, configDirs, manifest);
+					for (RenderJob job : batch) {
+						if (job.isDone() && doneQueue != null) {
+							doneQueue.put(job);
+						}
+					}
+					return null;
+				}
+			}));
+		}
+
+		List<RenderJob> failed = new ArrayList<RenderJob>();
+		for (int i = 0; i < futures.size(); i++) {
+			try {
+				futures.get(i).get();
+			} catch (InterruptedException e) {
+				// cancelled: stop the workers and their darktable-cli
+				System.err.println("rendering cancelled");
+				pool.shutdownNow();
+				Thread.currentThread().interrupt();
+				for (int j = i; j < batches.size(); j++) {
+					for (RenderJob job : batches.get(j)) {
+						if (!job.isDone()) {
+							failed.add(job);
+						}
+					}
+				}
+				break;
+			} catch (ExecutionException e) {
+				e.printStackTrace();
+			}
+			for (RenderJob job : batches.get(i)) {
+				if (!job.isDone()) {
+					failed.add(job);
+				}
+			}
+		}
+		return failed;
+	}
+
+	private List<List<RenderJob>> batches(List<RenderJob> todo, int nWorkers) {
+		// consecutive frames with the same options, all workers kept busy
+		int size = this.isBatchBroken ? 1 : Math.max(1, Math.min(
+				this.batchSize, (todo.size() + nWorkers - 1) / nWorkers));
+		List<List<RenderJob>> batches = new ArrayList<List<RenderJob>>();
+		List<RenderJob> batch = null;
+		for (RenderJob job : todo) {
+			if (batch == null || batch.size() >= size
+					|| !isSameBatch(batch.get(0), job)) {
+				batch = new ArrayList<RenderJob>();
+				batches.add(batch);
+			}
+			batch.add(job);
+		}
+		return batches;
+	}
+
+	private static boolean isSameBatch(RenderJob job1, RenderJob job2) {
+		// one command: same options and output format
+		return Arrays.equals(job1.options, job2.options)
+				&& Arrays.equals(job1.coreOptions, job2.coreOptions)
+				&& extension(job1.renderFile).equals(
+						extension(job2.renderFile));
+	}
+
+	private static String extension(String file) {
+		String name = new File(file).getName();
+		int dot = name.lastIndexOf('.');
+		return (dot < 0) ? "" : name.substring(dot);
+	}
+
+	private void renderBatch(List<RenderJob> batch,
+			BlockingQueue<File> configDirs, RenderManifest manifest)
+			throws InterruptedException, IOException {
+		// one attempt of frames with one darktable-cli, frames one by one if
+		// batches are not possible
+		int[] attempts = new int[batch.size()];
+		for (int i = 0; i < batch.size(); i++) {
+			attempts[i] = batch.get(i).attempts;
+		}
+		if (batch.size() > 1 && !this.isBatchBroken) {
+			File configDir = configDirs.take();
+			try {
+				this.renderBatchCmd(batch, configDir.getPath());
+			} finally {
+				configDirs.put(configDir);
+			}
+			for (RenderJob job : batch) {
+				if (job.isDone() && manifest != null) {
+					manifest.record(job);
+				}
+			}
+			if (!this.isBatchBroken) {
+				return;
+			}
+		}
+		for (int i = 0; i < batch.size(); i++) {
+			RenderJob job = batch.get(i);
+			if (!job.isDone()) {
+				// same attempt: the batch does not count
+				job.attempts = attempts[i];
+				this.renderOne(job, configDirs, manifest);
+			}
+		}
+	}
+
+	private void renderBatchCmd(List<RenderJob> batch, String configDir)
+			throws IOException {
+		// darktable-cli IN/0.RAW ... IN/n.RAW 'OUT/$(FILE_NAME).jpg' [options]
+		// [--core coreOptions --configdir DIR], XMP copied as sidecar IN/i.RAW.xmp (links
+		// to the RAW files), then OUT/i.jpg moved to the output of frame i
+		String outExt = extension(batch.get(0).renderFile);
+		File batchDir = Files.createTempDirectory(
+				new File(batch.get(0).renderFile).getAbsoluteFile()
+						.getParentFile().toPath(), ".tldt-batch").toFile();
+		try {
+			File inDir = new File(batchDir, "in");
+			File outDir = new File(batchDir, "out");
+			inDir.mkdirs();
+			outDir.mkdirs();
+			List<String> cmd = new ArrayList<String>();
+			cmd.add(this.darktablecliBin);
+			try {
+				for (int i = 0; i < batch.size(); i++) {
+					RenderJob job = batch.get(i);
+					File src = new File(inDir, i + extension(job.srcFile));
+					Files.createSymbolicLink(src.toPath(), new File(
+							job.srcFile).getAbsoluteFile().toPath());
+					// a copy: darktable may write its sidecars
+					Files.copy(Paths.get(job.xmpFile),
+							Paths.get(src.getPath() + ".xmp"));
+					cmd.add(src.getPath());
+				}
+			} catch (Exception e) {
+				System.err.println("batch rendering not possible ("
+						+ e.getMessage() + "), frames rendered one by one");
+				this.isBatchBroken = true;
+				return;
+			}
+			cmd.add(outDir.getPath() + "/$(FILE_NAME)" + outExt);
+			cmd.addAll(Arrays.asList(batch.get(0).options));
+			cmd.add("--core");
+			cmd.addAll(Arrays.asList(batch.get(0).coreOptions));
+			cmd.addAll(Arrays.asList("--configdir", configDir));
+
+			// remove previous outputs: a frame not rendered must not be done
+			for (RenderJob job : batch) {
+				new File(job.renderFile).delete();
+			}
+			ProcessResult result = TLDTCore.runCmdResult(this.timeoutMillis
+					* batch.size(), cmd.toArray(new String[cmd.size()]));
+			int nRendered = 0;
+			for (int i = 0; i < batch.size(); i++) {
+				RenderJob job = batch.get(i);
+				job.attempts += 1;
+				job.renderNanos += result.wallNanos / batch.size();
+				File frame = new File(outDir, i + outExt);
+				if (frame.exists()) {
+					Files.move(frame.toPath(), Paths.get(job.renderFile),
+							StandardCopyOption.REPLACE_EXISTING);
+					job.exitCode = 0;
+					nRendered += 1;
+				} else {
+					job.exitCode = Math.max(1, result.exitCode);
+				}
+			}
+			if (nRendered == 0 && !result.isTimedOut && !result.isCancelled) {
+				// darktable-cli does not take several inputs: never again
+				System.err.println("darktable-cli rendered no frame of a batch"
+						+ " (exit code " + result.exitCode
+						+ "), frames rendered one by one");
+				this.isBatchBroken = true;
+			}
+		} finally {
+			FileOp.deleteRecursive(batchDir);
+		}
+	}
+
+	private void renderOne(RenderJob job, BlockingQueue<File> configDirs,
+			RenderManifest manifest) throws InterruptedException, IOException {
+		// one attempt of one frame, recorded in manifest if done
+		File configDir = configDirs.take();
+		try {
+			// remove previous/partial output: darktable-cli does not
+			// overwrite existing files
+			new File(job.renderFile).delete();
+			job.attempts += 1;
+			ProcessResult result = TLDTCore.runCmdResult(this.timeoutMillis,
+					job.getCmd(this.darktablecliBin, configDir.getPath()));
+			job.exitCode = result.isOk() ? 0 : Math.max(1, result.exitCode);
+			job.renderNanos += result.wallNanos;
+		} finally {
+			configDirs.put(configDir);
+		}
+		if (job.isDone() && manifest != null) {
+			manifest.record(job);
+		}
+	}
+
+	/**
+	 * render jobs given one by one, without keeping them: at most 2 batches
+	 * per worker are taken from renderJobs at a time and failed frames are
+	 * retried at once (not in a next pass)
+	 *
+	 * @param renderJobs
+	 *            : frames to render, in output order (could be generated on
+	 *            demand)
+	 * @param manifest
+	 *            : frames done are recorded in it, frames already up to date
+	 *            are not rendered again (could be null)
+	 * @param outQueue
+	 *            : each frame is put in it when finished, done (also when up
+	 *            to date) or failed after all retries (could be null)
+	 * @return number of frames failed after all retries
+	 * @throws IOException
+	 */
+	public int renderStream(Iterator<RenderJob> renderJobs,
+			final RenderManifest manifest,
+			final BlockingQueue<RenderJob> outQueue) throws IOException {
+		final BlockingQueue<File> configDirs = new ArrayBlockingQueue<File>(
+				this.jobs);
+		for (int i = 0; i < this.jobs; i++) {
+			configDirs.add(Files.createTempDirectory("tldt-dtconf").toFile());
+		}
+		ExecutorService pool = Executors.newFixedThreadPool(this.jobs);
+		int maxInFlight = 2 * this.jobs * this.batchSize;
+		Semaphore inFlight = new Semaphore(maxInFlight);
+		List<RenderJob> failed = Collections
+				.synchronizedList(new ArrayList<RenderJob>());
+		int nUpToDate = 0;
+		try {
+			List<RenderJob> batch = new ArrayList<RenderJob>();
+			while (renderJobs.hasNext()) {
+				RenderJob job = renderJobs.next();
+				if (manifest != null && manifest.isUpToDate(job)) {
+					job.exitCode = 0;
+					nUpToDate += 1;
+					if (outQueue != null) {
+						outQueue.put(job);
+					}
+					continue;
+				}
+				if (!batch.isEmpty()
+						&& (batch.size() >= this.batchSize || !isSameBatch(
+								batch.get(0), job))) {
+					this.submitStream(pool, batch, configDirs, manifest,
+							outQueue, inFlight, failed);
+					batch = new ArrayList<RenderJob>();
+				}
+				batch.add(job);
+			}
+			if (!batch.isEmpty()) {
+				this.submitStream(pool, batch, configDirs, manifest, outQueue,
+						inFlight, failed);
+			}
+			// wait for the last jobs
+			inFlight.acquire(maxInFlight);
+		} catch (InterruptedException e) {
+			// cancelled: stop the workers and their darktable-cli
+			System.err.println("rendering cancelled");
+			pool.shutdownNow();
+			Thread.currentThread().interrupt();
+		} finally {
+			pool.shutdown();
+			for (File configDir : configDirs) {
+				FileOp.deleteRecursive(configDir);
+			}
+		}
+
+		System.out.println(nUpToDate
+				+ " frame(s) unchanged since last export, skipped");
+		synchronized (failed) {
+			for (RenderJob job : failed) {
+				System.err.println("rendering failed (exit code "
+						+ job.exitCode + ", " + job.attempts + " attempts): "
+						+ job.outFile);
+			}
+			return failed.size();
+		}
+	}
+
+	private void submitStream(ExecutorService pool,
+			final List<RenderJob> batch, final BlockingQueue<File> configDirs,
+			final RenderManifest manifest,
+			final BlockingQueue<RenderJob> outQueue, final Semaphore inFlight,
+			final List<RenderJob> failed) throws InterruptedException {
+		// render a batch (with its retries) when less frames are in flight
+		inFlight.acquire(batch.size());
+		pool.submit(new Callable<Void>() {
+			@Override
+			public Void call() throws Exception {
+				try {
+					for (int pass = 0; pass <= retries; pass++) {
+						List<RenderJob> todo = new ArrayList<RenderJob>();
+						for (RenderJob job : batch) {
+							if (!job.isDone()) {
+								todo.add(job);
+							}
+						}
+						if (todo.isEmpty()) {
+							break;
+						}
+						renderBatch(todo, configDirs, manifest);
+					}
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				} catch (IOException e) {
+					e.printStackTrace();
+				} finally {
+					try {
+						for (RenderJob job : batch) {
+							if (!job.isDone()) {
+								failed.add(job);
+							}
+							if (outQueue != null) {
+								outQueue.put(job);
+							}
+						}
+					} finally {
+						inFlight.release(batch.size());
+					}
+				}
+				return null;
+			}
+		});
+	}
+
+}
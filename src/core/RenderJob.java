@@ -0,0 +1,70 @@
+package core;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+public class RenderJob {
+
+	/**
+	 * RenderJob : one darktable-cli rendering (source, XMP, output) of a
+	 * frame, with its exit code and number of attempts
+	 */
+
+	public String srcFile; // source RAW file
+	public String xmpFile; // XMP sidecar to apply
+	public String outFile; // rendered file
+	public String renderFile; // by darktable-cli, converted to outFile or not
+	public String[] options; // extra darktable-cli options (--width...)
+	public String[] coreOptions; // darktable options after --core (--conf...)
+	public String signature; // inputs signature (see RenderManifest)
+	public int exitCode;
+	public int attempts;
+	public long renderNanos; // time spent in darktable-cli (all attempts)
+	public volatile boolean isOutputTaken; // by a next stage, could be deleted
+
+	public RenderJob(String srcFile, String xmpFile, String outFile,
+			String... options) {
+		super();
+		this.srcFile = srcFile;
+		this.xmpFile = xmpFile;
+		this.outFile = outFile;
+		this.renderFile = outFile;
+		this.options = options;
+		this.coreOptions = new String[0];
+		this.signature = "";
+		this.exitCode = -1;
+		this.attempts = 0;
+		this.renderNanos = 0;
+		this.isOutputTaken = false;
+	}
+
+	public String[] getCmd(String darktablecliBin, String configDir) {
+		// darktable-cli 'FIC.RAW' 'INTERP_FIC.RAW.XMP' 'FIC.RAW.JPG' [options]
+		// [--core coreOptions --configdir DIR]
+		List<String> cmd = new ArrayList<String>();
+		cmd.add(darktablecliBin);
+		cmd.add(this.srcFile);
+		cmd.add(this.xmpFile);
+		cmd.add(this.renderFile);
+		cmd.addAll(Arrays.asList(this.options));
+		if (configDir != null || this.coreOptions.length > 0) {
+			cmd.add("--core");
+			cmd.addAll(Arrays.asList(this.coreOptions));
+		}
+		if (configDir != null) {
+			// dedicated library/config: darktable locks its configdir
+			cmd.add("--configdir");
+			cmd.add(configDir);
+		}
+		return cmd.toArray(new String[cmd.size()]);
+	}
+
+	public boolean isDone() {
+		// darktable-cli may return 0 without writing anything
+		return this.exitCode == 0
+				&& (this.isOutputTaken || (new File(this.renderFile)).exists());
+	}
+
+}
@@ -0,0 +1,135 @@
+package core;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+public class RenderManifest {
+
+	/**
+	 * RenderManifest : record of the frames already rendered in outFolder.
+	 * One line per output file: "output \t signature \t value", where the
+	 * signature gathers everything the rendering depends on (history hash of
+	 * the XMP, source mtime/size, darktable-cli options) and value is an
+	 * optional result (e.g. luminance). Lines are appended as soon as a frame
+	 * is done, so an interrupted run resumes where it stopped.
+	 */
+
+	private String manifestFile;
+	private Map<String, String[]> entries;
+	private BufferedWriter out;
+
+	public RenderManifest(String manifestFile) throws IOException {
+		super();
+		this.manifestFile = manifestFile;
+		this.entries = new LinkedHashMap<String, String[]>();
+		this.load();
+		// rewrite the file with only the last entry of each output: in a
+		// temporary file moved on it (records kept if interrupted, runs
+		// sharing the file write their own), then appended
+		File file = new File(this.manifestFile).getAbsoluteFile();
+		File tmp = File.createTempFile(file.getName(), ".tmp",
+				file.getParentFile());
+		try {
+			this.out = new BufferedWriter(new FileWriter(tmp));
+			try {
+				for (Map.Entry<String, String[]> e : this.entries.entrySet()) {
+					this.writeLine(e.getKey(), e.getValue()[0],
+							e.getValue()[1]);
+				}
+			} finally {
+				this.out.close();
+			}
+			Files.move(tmp.toPath(), file.toPath(),
+					StandardCopyOption.ATOMIC_MOVE,
+					StandardCopyOption.REPLACE_EXISTING);
+		} finally {
+			tmp.delete();
+		}
+		this.out = new BufferedWriter(new FileWriter(file, true));
+	}
+
+	private void load() throws IOException {
+		File file = new File(this.manifestFile);
+		if (!file.exists()) {
+			return;
+		}
+		BufferedReader br = new BufferedReader(new FileReader(file));
+		String line;
+		while ((line = br.readLine()) != null) {
+			String[] fields = line.split("\t", -1);
+			if (fields.length == 3) {
+				// last line wins
+				this.entries.put(fields[0],
+						new String[] { fields[1], fields[2] });
+			}
+			// else: line truncated by an interrupted run, ignored
+		}
+		br.close();
+	}
+
+	private void writeLine(String output, String signature, String value)
+			throws IOException {
+		this.out.write(output + "\t" + signature + "\t" + value + "\n");
+	}
+
+	public static String signature(String historyHash, String srcPath,
+			String... options) {
+		// everything the rendered output depends on
+		File src = new File(srcPath);
+		StringBuilder sig = new StringBuilder(historyHash);
+		sig.append(':').append(src.lastModified());
+		sig.append(':').append(src.length());
+		for (String option : options) {
+			sig.append(':').append(option);
+		}
+		return sig.toString();
+	}
+
+	public synchronized boolean isUpToDate(String output, String signature) {
+		// output exists and was rendered from the same inputs
+		String[] entry = this.entries.get(output);
+		return entry != null && entry[0].equals(signature)
+				&& (new File(output)).exists();
+	}
+
+	public boolean isUpToDate(RenderJob job) {
+		return this.isUpToDate(job.outFile, job.signature);
+	}
+
+	public synchronized String getValue(String output) {
+		String[] entry = this.entries.get(output);
+		return (entry == null) ? null : entry[1];
+	}
+
+	public synchronized String getValue(String output, String signature) {
+		// value recorded with the same signature, null otherwise (output
+		// file is not checked: output could be a key only)
+		String[] entry = this.entries.get(output);
+		return (entry == null || !entry[0].equals(signature)) ? null
+				: entry[1];
+	}
+
+	public synchronized void record(String output, String signature,
+			String value) throws IOException {
+		this.entries.put(output, new String[] { signature, value });
+		this.writeLine(output, signature, value);
+		this.out.flush(); // keep the manifest valid if interrupted
+	}
+
+	public void record(RenderJob job) throws IOException {
+		this.record(job.outFile, job.signature, "");
+	}
+
+	public synchronized void close() throws IOException {
+		this.out.close();
+	}
+
+}
@@ -0,0 +1,55 @@
+package core;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+
+public abstract class StageConsumer implements Callable<Long> {
+
+	/**
+	 * StageConsumer : worker of a stage fed by the render stage through a
+	 * bounded queue (luminance, gain, movie encoder). Frames are taken until
+	 * END, which is put back for the other workers of the stage; a frame
+	 * failing is given to failed() and the next one is taken, so render
+	 * workers waiting on a full queue are always released. call() returns
+	 * the time spent processing frames.
+	 */
+
+	// end of the render stage
+	public static final RenderJob END = new RenderJob(null, null, null);
+
+	private BlockingQueue<RenderJob> queue;
+
+	public StageConsumer(BlockingQueue<RenderJob> queue) {
+		super();
+		this.queue = queue;
+	}
+
+	@Override
+	public Long call() throws Exception {
+		long busy = 0;
+		while (true) {
+			RenderJob job = this.queue.take();
+			if (job == END) {
+				this.queue.put(END);
+				this.finish();
+				return busy;
+			}
+			long t0 = System.nanoTime();
+			try {
+				this.process(job);
+			} catch (Exception e) {
+				this.failed(job, e);
+			}
+			busy += System.nanoTime() - t0;
+		}
+	}
+
+	protected abstract void process(RenderJob job) throws Exception;
+
+	protected abstract void failed(RenderJob job, Exception e);
+
+	protected void finish() throws Exception {
+		// after the last frame (could throw the failure of the stage)
+	}
+
+}
@@ -8,21 +8,42 @@ import java.io.FileInputStream;
 import java.io.FileWriter;
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
 import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
+import operations.DTConfGenerator;
 import operations.DTConfList;
 import operations.DTConfiguration;
 import operations.iop.Exposure;
 
 import org.apache.commons.math3.analysis.interpolation.LinearInterpolator;
+import org.apache.commons.math3.exception.OutOfRangeException;
 import org.apache.commons.math3.analysis.polynomials.PolynomialSplineFunction;
 
 import cli.Cli;
 
 import com.martiansoftware.jsap.JSAPException;
 
+import deflick.DeflickFilter;
+import deflick.DeflickGain;
+import deflick.LuminanceAnalyzer;
 import deflick.OctaveDeflickFcn;
+import movie.MencoderEncoder;
+import movie.MjpegAviEncoder;
+import movie.MovieEncoder;
+import utils.FileOp;
+import utils.ProcessResult;
+import utils.ProcessRunner;
+import utils.ProgressListener;
+import utils.ToolRegistry;
 
 public class TLDTCore {
 
@@ -30,15 +51,20 @@ public class TLDTCore {
 	// ------ hard-coded parameters ----------
 	public String progName = "timelapse-darktable";
 	public String progVersion = "0.6b"; // no more keyframe - based on rating
-	// binaries location
-	public String darktablecliBin = runCmdOut("which", "darktable-cli");
-	public String mencoderBin = runCmdOut("which", "mencoder");
-	public String convertBin = runCmdOut("which", "convert");
-	public String octaveBin = runCmdOut("which", "octave");
+	// binaries location: see ToolRegistry (resolved on first use)
 	// default outputs
 	public String outMasterFile = "generateDarktableTimelapse.sh";
 	public String outLuminanceFile = "ficL.txt";
+	public String outManifestFile = "renderManifest.txt";
+	public String outAnalysisFile = "analysisCache.bin"; // in outFolderDeflick
 	public boolean deflickRecompLum = false;
+	public int renderRetries = 2; // new attempts for failed frames
+	public int renderTimeout = 0; // s per frame, 0: no timeout
+	public String calibCacheFile = System.getProperty("user.home")
+			+ "/.timelapse-darktable/calibration.txt";
+	public double deflickCalibModelTol = 0.05; // max error of 2^EV model
+	public int deflickLumThreads = 1; // luminance stage of the pipeline
+	public LuminanceAnalyzer lumAnalyzer = new LuminanceAnalyzer();
 	// ------ parameters from CLI -------------
 	public String imgSrc;
 	public String xmpSrc;
@@ -50,20 +76,52 @@ public class TLDTCore {
 	public boolean isExportMovie;
 	public boolean isDeflick;
 	public int deflickLpFiltMinNum;
+	public boolean isDeflickOctave;
+	public int deflickProbeSize;
+	public boolean isDeflickPreview;
+	public boolean isDeflickCalibModel;
+	public double deflickSkipTol; // EV, 0: frames always rendered again
+	public boolean isDeflickGain; // deflickering applied on rendered frames
+	public int renderJobs;
+	public int renderBatch; // frames per darktable-cli
+	public double movieFps;
+	public int movieQuality;
+	public boolean isMovieMencoder;
+	public boolean isStreaming;
 
 	// local variables
 	public DTConfList dtConfListKeys;
 	public DTConfList dtConfListInterp;
+	private RenderManifest manifest;
+	private AnalysisCache analysisCache;
+	// predeflick render of each source up to date at export size (kept if
+	// deflickering correction is below deflickSkipTol)
+	private Map<String, String> predeflickOutputs = new HashMap<String, String>();
 
 	// extra parameters
 	public String outFolderDeflick;
+	private String outFolderFrames; // rendered frames: outFolder or scratch
 
 	// intrinsic timelapse property
 	public PolynomialSplineFunction calibLumDeltaEV;
+	public PolynomialSplineFunction calibDeltaEVLum; // inverse: EV => dLum
+	public double calibEVRef; // exposure of the calibration (dEV = 0)
 
 	// ---- JAVA CLI inputs management : END ----
 
 	public TLDTCore(String[] args) throws JSAPException, IOException {
+		this(args, null);
+	}
+
+	/**
+	 * @param args
+	 *            : command line arguments
+	 * @param xmpListener
+	 *            : notified after each XMP file of the source folder read
+	 *            (could be null)
+	 */
+	public TLDTCore(String[] args, ProgressListener xmpListener)
+			throws JSAPException, IOException {
 
 		// INITIALISATION OF PROGRAM
 
@@ -82,6 +140,18 @@ public class TLDTCore {
 		this.isExportMovie = cliConf.isExportMovie;
 		this.isDeflick = cliConf.isDeflick;
 		this.deflickLpFiltMinNum = cliConf.deflickLpFiltMinNum;
+		this.isDeflickOctave = cliConf.isDeflickOctave;
+		this.deflickProbeSize = cliConf.deflickProbeSize;
+		this.isDeflickPreview = cliConf.isDeflickPreview;
+		this.isDeflickCalibModel = cliConf.isDeflickCalibModel;
+		this.deflickSkipTol = cliConf.deflickSkipTol;
+		this.isDeflickGain = cliConf.isDeflickGain;
+		this.renderJobs = cliConf.renderJobs;
+		this.renderBatch = cliConf.renderBatch;
+		this.movieFps = cliConf.movieFps;
+		this.movieQuality = cliConf.movieQuality;
+		this.isMovieMencoder = cliConf.isMovieMencoder;
+		this.isStreaming = cliConf.isStreaming;
 
 		// Let's go now !
 		System.out.println("===== START : " + progName + " v" + progVersion
@@ -98,11 +168,23 @@ public class TLDTCore {
 		System.out.println("isExportMovie = " + isExportMovie);
 		System.out.println("isDeflick = " + isDeflick);
 		System.out.println("deflickLpFiltMinNum = " + deflickLpFiltMinNum);
+		System.out.println("isDeflickOctave = " + isDeflickOctave);
+		System.out.println("deflickProbeSize = " + deflickProbeSize);
+		System.out.println("isDeflickPreview = " + isDeflickPreview);
+		System.out.println("isDeflickCalibModel = " + isDeflickCalibModel);
+		System.out.println("deflickSkipTol = " + deflickSkipTol);
+		System.out.println("isDeflickGain = " + isDeflickGain);
+		System.out.println("renderJobs = " + renderJobs);
+		System.out.println("renderBatch = " + renderBatch);
+		System.out.println("movieFps = " + movieFps);
+		System.out.println("movieQuality = " + movieQuality);
+		System.out.println("isMovieMencoder = " + isMovieMencoder);
+		System.out.println("isStreaming = " + isStreaming);
 		System.out.println("");
 
 		// create list of input XMP files from folder
 		this.dtConfListKeys = new DTConfList();
-		dtConfListKeys.addXmpFromFolder(this.xmpSrc);
+		dtConfListKeys.addXmpFromFolder(this.xmpSrc, xmpListener);
 
 		// create list of interpolated XMP (empty)
 		this.dtConfListInterp = new DTConfList();
@@ -110,11 +192,58 @@ public class TLDTCore {
 	}
 
 	public void generateTimelapse() throws IOException {
-		this.interpolateXmp();
-		this.printBothConfList();
-		this.deflick();
-		this.exportJpg();
-		this.exportMovie();
+		this.checkTools();
+		if (this.isDeflickGain && !this.isDeflick) {
+			System.err.println("--deflick-gain without --deflick1: no"
+					+ " deflickering gain applied");
+			this.isDeflickGain = false;
+		}
+		try {
+			if (this.isStreaming && !this.isDeflick) {
+				this.exportStreaming();
+			} else {
+				if (this.isStreaming) {
+					System.err.println("streaming export not available with"
+							+ " deflickering (luminance of all frames"
+							+ " needed): all frames are kept in memory");
+				}
+				this.interpolateXmp();
+				this.printBothConfList();
+				this.deflick();
+				this.exportJpg();
+			}
+			this.exportMovie();
+		} finally {
+			// opened only by steps which render
+			if (this.manifest != null) {
+				this.manifest.close();
+				this.manifest = null;
+			}
+			if (this.analysisCache != null) {
+				this.analysisCache.close();
+				this.analysisCache = null;
+			}
+		}
+		ProcessRunner.printMetrics();
+	}
+
+	public void checkTools() throws IOException {
+		// stop now if a tool needed by the options is missing, not after
+		// hours of rendering (octave is optional: java filter otherwise)
+		System.out.println("\nexternal tools:");
+		if (this.isExportJpg || this.isExportMovie || this.isDeflick) {
+			ToolRegistry.get(ToolRegistry.DARKTABLE_CLI).require(
+					"rendering (--export-jpg1, --export-movie1, --deflick1)");
+			System.out.println(ToolRegistry.get(ToolRegistry.DARKTABLE_CLI));
+		}
+		if (this.isExportMovie && this.isMovieMencoder) {
+			ToolRegistry.get(ToolRegistry.MENCODER).require(
+					"movie export (--export-movie1)");
+			System.out.println(ToolRegistry.get(ToolRegistry.MENCODER));
+		}
+		if (this.isDeflick && this.isDeflickOctave) {
+			System.out.println(ToolRegistry.get(ToolRegistry.OCTAVE));
+		}
 	}
 
 	public void interpolateXmp() {
@@ -151,9 +280,11 @@ public class TLDTCore {
 			
 			// TODO : add checkExposure() method
 			//checkExposure();
+			// calibration first: it is used to estimate luminance of frames
+			// where only exposure changed
+			this.calibLumDeltaEV = deflickCalib();
 			deflickWriteLuminance();
 			deflickWriteFilter();
-			this.calibLumDeltaEV = deflickCalib();
 			// call deflickering (write XMP files)
 			this.dtConfListInterp.deflick(this.outFolder, this.calibLumDeltaEV);
 		}
@@ -177,81 +308,199 @@ public class TLDTCore {
 
 		String lumFileName = this.outFolderDeflick + "/"
 				+ this.outLuminanceFile;
-		boolean isLumFileExist = (new File(lumFileName)).exists();
+		RenderManifest manifest = this.getManifest();
+		AnalysisCache cache = this.getAnalysisCache();
+		int nSkipped = 0;
+		int nEstimated = 0;
+		String[] probeOptions = this.getPredeflickOptions();
+		String expoName = null;
+		if (this.calibDeltaEVLum != null && !this.isDeflickPreview) {
+			expoName = this.dtConfListInterp.first().findExposure();
+		}
 
-		if (this.deflickRecompLum || !isLumFileExist) {
+		// Compute raw luminance from interpolation XMP
+		// (frames measured from the same inputs are read from the cache, even
+		// if their render was deleted)
+		DTConfiguration[] frames = this.dtConfListInterp
+				.toArray(new DTConfiguration[this.dtConfListInterp.size()]);
+		String[] lum = new String[frames.length];
+		RenderJob[] jobs = new RenderJob[frames.length];
+		String[] expoSignatures = new String[frames.length];
+		String[] signatures = new String[frames.length];
+		List<RenderJob> todoJobList = new ArrayList<RenderJob>();
+		for (int i = 0; i < frames.length; i++) {
+			DTConfiguration dtc = frames[i];
+			String fic = dtc.srcFile;
+			String src = this.imgSrc + "/" + fic;
+
+			if (this.isDeflickPreview) {
+				// embedded preview: same for all XMP of the source
+				String key = src + "#preview";
+				String signature = RenderManifest.signature("preview", src);
+				AnalysisCache.Entry measure = cache.get(key, signature);
+				if (this.deflickRecompLum || measure == null) {
+					measure = new AnalysisCache.Entry(this.lumAnalyzer
+							.analyzeRawPreview(new File(src)));
+					cache.record(key, signature, measure);
+				} else {
+					nSkipped += 1;
+				}
+				lum[i] = Double.toString(measure.mean);
+				continue;
+			}
 
-			// Compute raw luminance from interpolation XMP
-			// and write luminance file
-			BufferedWriter outLum = new BufferedWriter(new FileWriter(
-					lumFileName));
-			String lum = null;
-			Iterator<DTConfiguration> itDTL = this.dtConfListInterp.iterator();
-			while (itDTL.hasNext()) {
-				DTConfiguration dtc = itDTL.next();
-				String fic = dtc.srcFile;
+			String outJpg = this.outFolderDeflick + "/" + fic + ".jpg";
+			String signature = RenderManifest.signature(dtc.getHistoryHash(),
+					src, probeOptions);
+			signatures[i] = signature;
+			// same inputs except exposure value (see estimateLuminance)
+			if (expoName != null) {
+				expoSignatures[i] = RenderManifest.signature(
+						dtc.getHistoryHash(expoName, "exposure"), src,
+						probeOptions);
+			}
 
+			AnalysisCache.Entry measure = cache.get(src, signature);
+			if (!this.deflickRecompLum && measure != null) {
+				lum[i] = Double.toString(measure.mean);
+				nSkipped += 1;
+			} else if (!this.deflickRecompLum
+					&& expoSignatures[i] != null
+					&& (lum[i] = this.estimateLuminance(dtc, expoName, cache
+							.get(src + "#exposure", expoSignatures[i]))) != null) {
+				nEstimated += 1;
+			} else {
 				// Generate thumbnail to evaluate luminance
-				// hq = false for faster export
-				runCmd(this.darktablecliBin, this.imgSrc + "/" + fic,
-						this.outFolderDeflick + "/" + fic + ".xmp",
-						this.outFolderDeflick + "/" + fic + ".jpg",
-						"--width 1920", "--height 1920", "--hq 0");
-
-				// retrieve luminance
-				// /usr/bin/convert is used, could be replaced by imagej in
-				// newer version to prevent dependancies
-				lum = runCmdOut(this.convertBin, this.outFolderDeflick + "/"
-						+ fic + ".jpg", "-scale", "1x1!", "-format",
-						"%[fx:luminance]", "info:");
-				dtc.luminance = Double.valueOf(lum);
-
-				// write into a file for octave post-processing
-				outLum.write(lum + "\n");
+				jobs[i] = new RenderJob(src, this.outFolderDeflick + "/" + fic
+						+ ".xmp", outJpg, probeOptions);
+				jobs[i].signature = signature;
+				todoJobList.add(jobs[i]);
 			}
-			outLum.close();
-		} else {
-			// load existing luminance file
-			FileInputStream fstream = new FileInputStream(lumFileName);
-			DataInputStream in = new DataInputStream(fstream);
-			BufferedReader br = new BufferedReader(new InputStreamReader(in));
-			String lum = null;
-			boolean isErrDisplayed=false;
+		}
 
-			Iterator<DTConfiguration> itDTL = this.dtConfListInterp.iterator();
-			while (itDTL.hasNext()) {
-				DTConfiguration dtc = itDTL.next();
-				// retrieve luminance
-				try {
-					lum = br.readLine(); // read line by line
-					dtc.luminance = Double.valueOf(lum);
-				} catch (Exception e) {
-					if (!isErrDisplayed) {
-						System.err
-						.println("\nluminance file for deflickering do not have the same size as current XMP list:\n"
-								+ "consider deleting " + this.outLuminanceFile + " and run again timelapse-darktable\n");
-						isErrDisplayed=true;
-					}
+		// render frames and measure them as soon as they are rendered
+		if (!todoJobList.isEmpty()) {
+			RenderFarm farm = this.newRenderFarm();
+			LuminancePipeline pipeline = new LuminancePipeline(farm,
+					this.lumAnalyzer, 2 * farm.getJobs(), this.deflickLumThreads);
+			Map<RenderJob, Double> lumRendered = pipeline.run(todoJobList,
+					manifest, cache);
+			for (int i = 0; i < frames.length; i++) {
+				if (jobs[i] == null) {
+					continue;
+				}
+				Double lumJob = lumRendered.get(jobs[i]);
+				if (lumJob == null) {
+					throw new IOException("luminance of " + jobs[i].outFile
+							+ " not available: rendering or measure failed");
+				}
+				lum[i] = Double.toString(lumJob);
+				if (expoSignatures[i] != null) {
+					AnalysisCache.Entry measure = cache.get(jobs[i].srcFile,
+							jobs[i].signature);
+					measure.exposure = frames[i].getOpParValue(expoName,
+							"exposure", 0);
+					cache.record(jobs[i].srcFile + "#exposure",
+							expoSignatures[i], measure);
+				}
+			}
+		}
+
+		// renders at export size which could be kept by exportJpg
+		this.predeflickOutputs.clear();
+		if (this.deflickSkipTol > 0 && !this.isDeflickPreview) {
+			for (int i = 0; i < frames.length; i++) {
+				String outJpg = this.outFolderDeflick + "/"
+						+ frames[i].srcFile + ".jpg";
+				if (manifest.isUpToDate(outJpg, signatures[i])) {
+					this.predeflickOutputs.put(frames[i].srcFile, outJpg);
 				}
 			}
-			in.close();
+		}
 
+		// write luminance file for octave post-processing
+		BufferedWriter outLum = new BufferedWriter(new FileWriter(lumFileName));
+		for (int i = 0; i < frames.length; i++) {
+			frames[i].luminance = Double.valueOf(lum[i]);
+			outLum.write(lum[i] + "\n");
+		}
+		outLum.close();
+		System.out.println(nSkipped
+				+ " luminance value(s) unchanged, read from "
+				+ this.outAnalysisFile);
+		if (nEstimated > 0) {
+			System.out.println(nEstimated
+					+ " luminance value(s) estimated from exposure change");
 		}
 
 	}
 
+	private String estimateLuminance(DTConfiguration dtc, String expoName,
+			AnalysisCache.Entry measure) {
+		// luminance of a frame where only exposure changed since it was
+		// measured: lum * (1 + dLum(EV new)) / (1 + dLum(EV old)) with the
+		// calibration curve, null if not possible
+		if (measure == null || Double.isNaN(measure.exposure)) {
+			return null;
+		}
+		double lumOld = measure.mean;
+		double evOld = measure.exposure;
+		double evNew = dtc.getOpParValue(expoName, "exposure", 0);
+		try {
+			double gain = (1 + this.calibDeltaEVLum.value(evNew
+					- this.calibEVRef))
+					/ (1 + this.calibDeltaEVLum.value(evOld - this.calibEVRef));
+			return Double.toString(lumOld * gain);
+		} catch (OutOfRangeException e) {
+			// out of calibration range: frame is rendered
+			return null;
+		}
+	}
+
 	public void deflickWriteFilter() throws IOException {
+		// regression on luminance points: deflickering target of each frame
+		if (this.isDeflickOctave) {
+			if (!ToolRegistry.get(ToolRegistry.OCTAVE).isAvailable()) {
+				System.err.println("octave not found: java deflickering filter is used");
+			} else {
+				this.deflickWriteFilterOctave();
+				return;
+			}
+		}
+
+		// filter luminance values of all frames (same filter as octave script)
+		double[] lum = new double[this.dtConfListInterp.size()];
+		int i = 0;
+		for (DTConfiguration dtc : this.dtConfListInterp) {
+			lum[i++] = dtc.luminance;
+		}
+		DeflickFilter df = new DeflickFilter(this.outFolderDeflick,
+				this.outLuminanceFile);
+		df.setLpFiltMinNum(this.deflickLpFiltMinNum);
+		double[] lumDeflick = df.filter(lum);
+		df.writeFiles(); // _deflick.txt and _deflick.svg
+
+		i = 0;
+		for (DTConfiguration dtc : this.dtConfListInterp) {
+			System.out.println(lumDeflick[i]);
+			dtc.luminanceDeflick = lumDeflick[i++];
+		}
+	}
+
+	private void deflickWriteFilterOctave() throws IOException {
 		// regression on luminance points with octave script (write the "master"
 		// script)
 
 		// write octave scripts in outFolder/deflick
+		String octaveBin = ToolRegistry.get(ToolRegistry.OCTAVE).require(
+				"deflickering filter with octave (--deflick-octave)");
 		OctaveDeflickFcn odf = new OctaveDeflickFcn(this.outFolderDeflick,
-				this.outLuminanceFile, this.octaveBin);
+				this.outLuminanceFile, octaveBin);
 		odf.setLpFiltMinNum(this.deflickLpFiltMinNum);
 		odf.writeFiles(); // write octave scripts
 
 		// execute octave script : filtering luminance values
-		runCmd(this.octaveBin, odf.outFolderDeflick + "/" + odf.masterFileName);
+		runCmd(octaveBin, odf.outFolderDeflick + "/" + odf.masterFileName);
 
 		// add luminanceDeflick to DTConfiguration reading _deflick.txt line by
 		// line
@@ -278,57 +527,69 @@ public class TLDTCore {
 	private PolynomialSplineFunction deflickCalib() throws IOException {
 		// calibration EV <=> luminance
 		double[] evCalib = { -4, -3, -2, -1, -0.5, 0, 0.5, 1, 2, 3, 4 };
-		int evCalibZeroIdx = 5; // index of EV = 0 in the calibration table
-								// evCalib
-		double[] lumCalib = new double[evCalib.length];
-		double[] deltaLumCalib = new double[evCalib.length];
+		double[] deltaLumCalib = null;
 		DTConfiguration dtc = this.dtConfListInterp.first();
 		String fic = dtc.srcFile;
+		String src = this.imgSrc + "/" + fic;
 		String outFolderCalib = this.outFolderDeflick + "/calib";
-		int iFolder = 1;
-		while ((new File(outFolderCalib)).exists()) {
-			System.out.print(outFolderCalib+" already exists, increment");
-			outFolderCalib = this.outFolderDeflick + "/calib" + iFolder;
-			iFolder += 1;
-		}
-
-		
-		// double evFirst = getOpParValue(dtc,"exposure ", "exposure", 0);
 		String expoName = dtc.findExposure();
 		double evFirst = dtc.getOpParValue(expoName, "exposure", 0);
-		for (int i = 0; i < evCalib.length; i++) {
-			// change operations/iop/exposure parameter to calibrate luminance
-			// sensitivity
-
-			// update XMP configuration with calibration value +/- current
-			// exposure value
-			// setOpParValue(dtc,"exposure ", "exposure", 0,
-			// evFirst+evCalib[i]);
-			dtc.setOpParValue(expoName, "exposure", 0, evFirst + evCalib[i]);
-			dtc.setOpEnable(expoName, true);
-			dtc.updateXmpConf(outFolderCalib);
-			// generate JPG
-			runCmd(this.darktablecliBin, this.imgSrc + "/" + fic,
-					outFolderCalib + "/" + fic + ".xmp", outFolderCalib + "/"
-							+ fic + "_" + i + ".jpg", "--width " + exportWidth,
-					"--height " + exportHeight);
-			// retrieve luminance
-			lumCalib[i] = Double.valueOf(runCmdOut(this.convertBin, outFolderCalib
-					+ "/" + fic + "_" + i + ".jpg", "-scale", "1x1!",
-					"-format", "%[fx:luminance]", "info:"));
-		}
-		// setOpParValue(dtc,"exposure ", "exposure", 0, evFirst); // reset
-		// value
-		dtc.setOpParValue(expoName, "exposure", 0, evFirst); // reset value
-		dtc.updateXmpConf(outFolderCalib);
+
+		// calibration curve is cached per source file (so per camera) and
+		// history: same shoot in another output folder reuses it
+		new File(this.calibCacheFile).getParentFile().mkdirs();
+		RenderManifest calibCache = new RenderManifest(this.calibCacheFile);
+		String calibKey = src + "#calib";
+		String[] probeOptions = this.getProbeOptions();
+		String[] calibOptions = new String[probeOptions.length + 2];
+		System.arraycopy(probeOptions, 0, calibOptions, 0,
+				probeOptions.length);
+		calibOptions[probeOptions.length] = this.isDeflickCalibModel ? "model"
+				: "render";
+		// another darktable version could render differently
+		calibOptions[probeOptions.length + 1] = ToolRegistry.get(
+				ToolRegistry.DARKTABLE_CLI).getVersion();
+		String calibSignature = RenderManifest.signature(
+				dtc.getHistoryHash(), src, calibOptions);
+		String cached = calibCache.getValue(calibKey, calibSignature);
+		if (cached != null && !this.deflickRecompLum) {
+			String[] values = cached.split(",");
+			deltaLumCalib = new double[values.length];
+			for (int i = 0; i < values.length; i++) {
+				deltaLumCalib[i] = Double.valueOf(values[i]);
+			}
+			System.out.println("calibration read from "
+					+ this.calibCacheFile);
+		} else {
+			if (this.isDeflickCalibModel) {
+				deltaLumCalib = this.deflickCalibModel(dtc, expoName, evFirst,
+						evCalib, outFolderCalib);
+			}
+			if (deltaLumCalib == null) {
+				// one render per calibration point
+				double[] lumCalib = this.deflickCalibRender(dtc, expoName,
+						evFirst, evCalib, outFolderCalib);
+				double lumRef = lumCalib[Arrays.binarySearch(evCalib, 0)];
+				deltaLumCalib = new double[evCalib.length];
+				for (int i = 0; i < evCalib.length; i++) {
+					// compute deltaLum/lum0 (EV = 0 => ref)
+					deltaLumCalib[i] = (lumCalib[i] / lumRef - 1.0d);
+				}
+			}
+			StringBuilder values = new StringBuilder();
+			for (int i = 0; i < deltaLumCalib.length; i++) {
+				values.append((i == 0) ? "" : ",").append(deltaLumCalib[i]);
+			}
+			calibCache.record(calibKey, calibSignature, values.toString());
+		}
+		calibCache.close();
 
 		// write calibration curve
+		new File(outFolderCalib).mkdirs();
 		BufferedWriter fileCalibCurve = new BufferedWriter(new FileWriter(
 				outFolderCalib + "/calib.txt"));
 		fileCalibCurve.write("deltaEV" + " " + "deltaLum\n");
 		for (int i = 0; i < evCalib.length; i++) {
-			// compute deltaLum/lum0 evCalib[2]=0 => ref
-			deltaLumCalib[i] = (lumCalib[i] / lumCalib[evCalibZeroIdx] - 1.0d);
 			fileCalibCurve.write(evCalib[i] + " " + deltaLumCalib[i] + "\n");
 		}
 		fileCalibCurve.close();
@@ -337,11 +598,124 @@ public class TLDTCore {
 		LinearInterpolator li = new LinearInterpolator();
 		PolynomialSplineFunction calibLumDeltaEV = li.interpolate(
 				deltaLumCalib, evCalib);
+		this.calibDeltaEVLum = li.interpolate(evCalib, deltaLumCalib);
+		this.calibEVRef = evFirst;
 
 		return calibLumDeltaEV;
 
 	}
 
+	private double[] deflickCalibModel(DTConfiguration dtc, String expoName,
+			double evFirst, double[] evCalib, String outFolderCalib)
+			throws IOException {
+		// closed-form model lum = lum0 * 2^(k*dEV) (k ~ 1/gamma of the
+		// output), k fitted on a few renders. null if the renders do not
+		// follow the model (e.g. clipping): full calibration is needed.
+		double[] evSample = { -2, 0, 2 };
+		double[] lumSample = this.deflickCalibRender(dtc, expoName, evFirst,
+				evSample, outFolderCalib);
+		double lum0 = lumSample[1];
+		// least squares on log2(lum/lum0) = k*dEV
+		double num = 0;
+		double den = 0;
+		for (int i = 0; i < evSample.length; i++) {
+			num += evSample[i] * Math.log(lumSample[i] / lum0) / Math.log(2);
+			den += evSample[i] * evSample[i];
+		}
+		double k = num / den;
+		if (!(k > 0)) {
+			System.out.println("calibration model rejected (k = " + k + ")");
+			return null;
+		}
+		for (int i = 0; i < evSample.length; i++) {
+			double lumModel = lum0 * Math.pow(2, k * evSample[i]);
+			double err = Math.abs(lumModel - lumSample[i]) / lumSample[i];
+			if (err > this.deflickCalibModelTol) {
+				System.out.println("calibration model rejected (error "
+						+ err + " at " + evSample[i] + " EV)");
+				return null;
+			}
+		}
+		System.out.println("calibration model: lum = lum0 * 2^(" + k
+				+ " * dEV)");
+		double[] deltaLumCalib = new double[evCalib.length];
+		for (int i = 0; i < evCalib.length; i++) {
+			deltaLumCalib[i] = Math.pow(2, k * evCalib[i]) - 1.0d;
+		}
+		return deltaLumCalib;
+	}
+
+	private double[] deflickCalibRender(DTConfiguration dtc, String expoName,
+			double evFirst, double[] evCalib, String outFolderCalib)
+			throws IOException {
+		// luminance of dtc with exposure evFirst + evCalib[i], rendered at
+		// probe resolution in parallel (measures are reused from the analysis
+		// cache if inputs are unchanged)
+		RenderManifest manifest = this.getManifest();
+		AnalysisCache cache = this.getAnalysisCache();
+		String fic = dtc.srcFile;
+		double[] lumCalib = new double[evCalib.length];
+		List<RenderJob> jobs = new ArrayList<RenderJob>();
+		List<Integer> jobIdx = new ArrayList<Integer>();
+		for (int i = 0; i < evCalib.length; i++) {
+			// each calibration point has its own XMP: renders are independent
+			DTConfiguration dtcCalib = new DTConfiguration(dtc);
+			dtcCalib.setOpParValue(expoName, "exposure", 0, evFirst
+					+ evCalib[i]);
+			dtcCalib.setOpEnable(expoName, true);
+			String name = fic + "_" + evCalib[i] + "EV";
+			RenderJob job = new RenderJob(this.imgSrc + "/" + fic,
+					outFolderCalib + "/" + name + ".xmp", outFolderCalib + "/"
+							+ name + ".jpg", this.getProbeOptions());
+			job.signature = RenderManifest.signature(
+					dtcCalib.getHistoryHash(), job.srcFile, job.options);
+			AnalysisCache.Entry measure = cache.get(job.outFile,
+					job.signature);
+			if (measure != null) {
+				lumCalib[i] = measure.mean;
+			} else {
+				dtcCalib.updateXmpConf(outFolderCalib, name);
+				jobs.add(job);
+				jobIdx.add(i);
+			}
+		}
+
+		RenderFarm farm = this.newRenderFarm();
+		if (farm.render(jobs, manifest) > 0) {
+			throw new IOException("calibration rendering failed in "
+					+ outFolderCalib);
+		}
+		for (int j = 0; j < jobs.size(); j++) {
+			RenderJob job = jobs.get(j);
+			AnalysisCache.Entry measure = new AnalysisCache.Entry(
+					this.lumAnalyzer.analyze(job.outFile));
+			cache.record(job.outFile, job.signature, measure);
+			lumCalib[jobIdx.get(j)] = measure.mean;
+		}
+		return lumCalib;
+	}
+
+	private String[] getPredeflickOptions() {
+		// frames measured at export size if their render could be kept
+		if (this.deflickSkipTol > 0) {
+			return this.getExportOptions();
+		}
+		return this.getProbeOptions();
+	}
+
+	private String[] getExportOptions() {
+		return new String[] { "--width", Integer.toString(this.exportWidth),
+				"--height", Integer.toString(this.exportHeight) };
+	}
+
+	private String[] getProbeOptions() {
+		// low resolution renders are enough for a mean luminance
+		// hq = false for faster export
+		return new String[] { "--width",
+				Integer.toString(this.deflickProbeSize), "--height",
+				Integer.toString(this.deflickProbeSize), "--hq", "0" };
+	}
+
 	public void exportJpg() throws IOException {
 
 		// -------------------------------------------
@@ -361,54 +735,295 @@ public class TLDTCore {
 		}
 
 		// script
-		String cmdScript = null;
+		File frameSpool = this.newFrameSpool();
+		List<RenderJob> renderJobList = new ArrayList<RenderJob>();
+		List<DTConfiguration> frameList = new ArrayList<DTConfiguration>();
 		BufferedWriter outScript = new BufferedWriter(new FileWriter(
 				this.outFolder + "/" + this.outMasterFile));
 		Iterator<DTConfiguration> itDTL = this.dtConfListInterp.iterator();
 		while (itDTL.hasNext()) {
 			DTConfiguration dtc = itDTL.next();
-			String fic = dtc.srcFile;
+			renderJobList.add(this.newExportJob(dtc, outScript));
+			frameList.add(dtc);
+		}
+		outScript.close();
+
+		if (this.isExportJpg || this.isExportMovie) {
+			try {
+				// frames already rendered from the same inputs are skipped
+				// (JPG kept only)
+				RenderManifest manifest = (frameSpool == null) ? this
+						.getManifest() : null;
+				List<RenderJob> todoJobList = new ArrayList<RenderJob>();
+				int nPromoted = 0;
+				for (int i = 0; i < renderJobList.size(); i++) {
+					RenderJob job = renderJobList.get(i);
+					if (manifest != null && manifest.isUpToDate(job)) {
+						continue;
+					}
+					if (!this.isDeflickGain
+							&& this.promotePredeflick(frameList.get(i), job,
+									manifest)) {
+						nPromoted += 1;
+					} else {
+						todoJobList.add(job);
+					}
+				}
+				System.out.println((renderJobList.size() - todoJobList
+						.size() - nPromoted)
+						+ " frame(s) unchanged since last export, skipped");
+				if (this.deflickSkipTol > 0) {
+					System.out.println(nPromoted + " frame(s) deflickered by"
+							+ " less than " + this.deflickSkipTol
+							+ " EV: predeflick render kept");
+				}
 
-			// add line to the script file
-			cmdScript = this.darktablecliBin + " '" + this.imgSrc + "/" + fic
-					+ "' '" + this.outFolder + "/" + fic + ".xmp' '"
-					+ this.outFolder + "/" + fic + ".jpg' --width "
-					+ this.exportWidth + " --height " + this.exportHeight;
-			outScript.write(cmdScript + "\n");
-
-			if (this.isExportJpg) {
-				// generate directly the output JPG
-				runCmd(this.darktablecliBin, this.imgSrc + "/" + fic,
-						this.outFolder + "/" + fic + ".xmp", this.outFolder
-								+ "/" + fic + ".jpg",
-								"--width", Integer.toString(this.exportWidth),
-								"--height",	Integer.toString(this.exportHeight));
+				// generate directly the output JPG (renderJobs in parallel),
+				// the movie is encoded meanwhile
+				RenderFarm farm = this.newRenderFarm();
+				int nFailed;
+				if (this.isDeflickGain) {
+					nFailed = this.exportGain(farm, renderJobList, frameList,
+							todoJobList, manifest);
+				} else if (this.isExportMovie) {
+					MovieStage movieStage = this.newMovieStage(farm,
+							frameSpool);
+					nFailed = movieStage.run(renderJobList, todoJobList,
+							manifest);
+				} else {
+					nFailed = farm.render(todoJobList, manifest);
+				}
+				if (nFailed > 0) {
+					System.err.println("\n" + nFailed
+							+ " frame(s) not exported, run again"
+							+ " timelapse-darktable to complete them");
+				}
+			} finally {
+				if (frameSpool != null) {
+					FileOp.deleteRecursive(frameSpool);
+				}
 			}
 		}
-		outScript.close();
 	}
 
-	void exportMovie() {
+	private int exportGain(RenderFarm farm, List<RenderJob> renderJobList,
+			List<DTConfiguration> frameList, List<RenderJob> todoJobList,
+			RenderManifest manifest) throws IOException {
+		// frames rendered without deflickering, deflickering gain applied
+		// while next frames are rendered, then the movie of all frames
+		Map<RenderJob, Double> lumRatio = new HashMap<RenderJob, Double>();
+		for (int i = 0; i < renderJobList.size(); i++) {
+			DTConfiguration dtc = frameList.get(i);
+			lumRatio.put(renderJobList.get(i), dtc.luminanceDeflick
+					/ dtc.luminance);
+		}
+		DeflickGain gain = new DeflickGain(Runtime.getRuntime()
+				.availableProcessors());
+		int nFailed;
+		try {
+			GainPipeline pipeline = new GainPipeline(farm, gain,
+					2 * farm.getJobs());
+			nFailed = pipeline.run(todoJobList, lumRatio, manifest);
+		} finally {
+			gain.shutdown();
+		}
+
+		if (this.isExportMovie) {
+			System.out.println("\ngenerating timelapse video " + this.outFolder
+					+ "/video.avi (" + (this.isMovieMencoder ? "mencoder"
+					: "MJPEG") + " @ " + this.movieFps + " fps)...");
+			MovieEncoder encoder = this.newMovieEncoder();
+			for (RenderJob job : renderJobList) {
+				File frame = new File(job.outFile);
+				if (frame.exists()) {
+					encoder.addFrame(frame);
+				}
+			}
+			encoder.close();
+		}
+		return nFailed;
+	}
+
+	public void exportStreaming() throws IOException {
+		// interpolation, XMP, JPG export and movie frame by frame: only the
+		// keyframes and the frames in progress are in memory (no deflickering)
+		System.out
+				.println("\nParameter of interpolation (verbose)\n----------------------------------------------");
+		System.out.println("\nsource");
+		this.dtConfListKeys.printAllParamTable();
+		DTConfGenerator frames = this.dtConfListKeys
+				.interpGenerator(this.interpType);
+		System.out.println("\ninterp: " + frames.size()
+				+ " frame(s) generated one by one");
+
+		if (this.isExportJpg) {
+			System.out
+					.println("\nexporting each frame in JPG with darktable-cli...");
+		} else {
+			System.out
+					.println("\nScript to generate each JPG in batch could be found here:");
+			System.out.println(this.outFolder + "/" + this.outMasterFile);
+		}
+		new File(this.outFolder).mkdirs();
+		File frameSpool = this.newFrameSpool();
+		final BufferedWriter outScript = new BufferedWriter(new FileWriter(
+				this.outFolder + "/" + this.outMasterFile));
+		final Iterator<DTConfiguration> itFrames = frames.iterator();
+		Iterator<RenderJob> jobs = new Iterator<RenderJob>() {
+			@Override
+			public boolean hasNext() {
+				return itFrames.hasNext();
+			}
+
+			@Override
+			public RenderJob next() {
+				// frame generated, written and dropped (job only is kept)
+				DTConfiguration dtc = itFrames.next();
+				dtc.updateXmpConf(outFolder);
+				try {
+					return newExportJob(dtc, outScript);
+				} catch (IOException e) {
+					throw new RuntimeException(e);
+				}
+			}
+
+			@Override
+			public void remove() {
+				throw new UnsupportedOperationException();
+			}
+		};
+
+		try {
+			if (!this.isExportJpg && !this.isExportMovie) {
+				while (jobs.hasNext()) {
+					jobs.next();
+				}
+				return;
+			}
+			RenderFarm farm = this.newRenderFarm();
+			int nFailed;
+			if (this.isExportMovie) {
+				MovieStage movieStage = this.newMovieStage(farm, frameSpool);
+				nFailed = movieStage.runStream(jobs, frames.size(),
+						(frameSpool == null) ? this.getManifest() : null);
+			} else {
+				nFailed = farm.renderStream(jobs, this.getManifest(), null);
+			}
+			if (nFailed > 0) {
+				System.err.println("\n" + nFailed + " frame(s) not exported,"
+						+ " run again timelapse-darktable to complete them");
+			}
+		} catch (RuntimeException e) {
+			if (e.getCause() instanceof IOException) {
+				throw (IOException) e.getCause();
+			}
+			throw e;
+		} finally {
+			outScript.close();
+			if (frameSpool != null) {
+				FileOp.deleteRecursive(frameSpool);
+			}
+		}
+	}
+
+	private boolean promotePredeflick(DTConfiguration dtc, RenderJob job,
+			RenderManifest manifest) throws IOException {
+		// negligible deflickering: the predeflick render (same options) is
+		// the frame, linked (or copied) instead of rendered again
+		String predeflick = this.predeflickOutputs.get(dtc.srcFile);
+		if (predeflick == null || dtc.evDeflick == null
+				|| Math.abs(dtc.evDeflick) >= this.deflickSkipTol
+				|| !Arrays.equals(job.options, this.getExportOptions())) {
+			return false;
+		}
+		Path out = Paths.get(job.outFile);
+		Files.deleteIfExists(out);
+		try {
+			Files.createLink(out, Paths.get(predeflick));
+		} catch (Exception e) {
+			// no hard link on this file system
+			Files.copy(Paths.get(predeflick), out);
+		}
+		job.exitCode = 0;
+		if (manifest != null) {
+			manifest.record(job);
+		}
+		return true;
+	}
+
+	private File newFrameSpool() throws IOException {
+		// movie without JPG export: frames rendered in a scratch folder (in
+		// memory if possible), deleted once encoded
+		this.outFolderFrames = this.outFolder;
+		if (this.isExportJpg || !this.isExportMovie) {
+			return null;
+		}
+		File frameSpool = FileOp.createScratchDirectory("tldt-frames");
+		this.outFolderFrames = frameSpool.getPath();
+		System.out.println("\nframes rendered for the movie only in "
+				+ frameSpool + " (--export-jpg1 to keep them)");
+		return frameSpool;
+	}
+
+	private MovieStage newMovieStage(RenderFarm farm, File frameSpool)
+			throws IOException {
+		// movie encoded while frames are rendered
+		System.out.println("\ngenerating timelapse video " + this.outFolder
+				+ "/video.avi (" + (this.isMovieMencoder ? "mencoder" : "MJPEG")
+				+ " @ " + this.movieFps + " fps) while rendering...");
+		MovieStage movieStage = new MovieStage(farm, this.newMovieEncoder());
+		movieStage.setFrameDeleted(frameSpool != null);
+		return movieStage;
+	}
+
+	private RenderJob newExportJob(DTConfiguration dtc,
+			BufferedWriter outScript) throws IOException {
+		// export job of a frame, its command added to the script file
+		String fic = dtc.srcFile;
+		String cmdScript = ToolRegistry.get(ToolRegistry.DARKTABLE_CLI)
+				.getPathOrName() + " '" + this.imgSrc + "/" + fic + "' '"
+				+ this.outFolder + "/" + fic + ".xmp' '" + this.outFolder
+				+ "/" + fic + ".jpg' --width " + this.exportWidth
+				+ " --height " + this.exportHeight;
+		outScript.write(cmdScript + "\n");
+
+		if (this.isDeflickGain) {
+			// JPG of the deflickered frame, rendered before deflickering as
+			// a 16-bit PNG (GainPipeline: gain applied, then JPG encoded)
+			RenderJob job = new RenderJob(this.imgSrc + "/" + fic,
+					this.outFolderDeflick + "/" + fic + ".xmp",
+					this.outFolderFrames + "/" + fic + ".jpg",
+					this.getExportOptions());
+			job.renderFile = this.outFolderFrames + "/" + fic + ".png";
+			job.coreOptions = new String[] { "--conf",
+					"plugins/imageio/format/png/bpp=16" };
+			String[] gainOptions = Arrays.copyOf(job.options,
+					job.options.length + 3);
+			gainOptions[job.options.length] = "gain";
+			gainOptions[job.options.length + 1] = job.coreOptions[0];
+			gainOptions[job.options.length + 2] = job.coreOptions[1];
+			job.signature = RenderManifest.signature(dtc.getHistoryHash(),
+					job.srcFile, gainOptions);
+			return job;
+		}
+		RenderJob job = new RenderJob(this.imgSrc + "/" + fic,
+				this.outFolder + "/" + fic + ".xmp", this.outFolderFrames
+						+ "/" + fic + ".jpg", this.getExportOptions());
+		job.signature = RenderManifest.signature(dtc.getHistoryHash(),
+				job.srcFile, job.options);
+		return job;
+	}
+
+	void exportMovie() throws IOException {
 
 		// ---------------------------------
 		// MOVIE GENERATION
 		// ---------------------------------
 		if (isExportMovie) {
-			if (isExportJpg) {
-				// generation of the video using mencoder @ 25 fps
-				System.out
-						.println("\ngenerating timelapse video with mencoder...");
-				runCmd(mencoderBin, "mf://" + outFolder + "/*.[jJ][pP][gG]",
-						"-nosound", "-ovc", "lavc", "-lavcopts",
-						"vcodec=mjpeg", "-mf", "fps=25", "-o", outFolder
-								+ "/video.avi");
-				System.out
-						.println("\nYou can look at your timelapse right now here!\n"
-								+ outFolder + "/video.avi");
-			} else {
-				System.out
-						.println("\nVideo not generated, to do so --export-jpg1|-j option should be added to the comman line in addition to --export-movie1|-m...");
-			}
+			// video encoded with the frames rendering (see exportJpg)
+			System.out
+					.println("\nYou can look at your timelapse right now here!\n"
+							+ outFolder + "/video.avi");
 		}
 	}
 	
@@ -417,47 +1032,81 @@ public class TLDTCore {
 	// --------------------------------------------
 	// SUPPORT FUNCTIONS
 	// --------------------------------------------
-	public static void runCmd(String... cmdString) {
-		runCmdOut(cmdString);
+	public RenderManifest getManifest() throws IOException {
+		// opened on first use, shared by all rendering steps
+		if (this.manifest == null) {
+			new File(this.outFolder).mkdirs();
+			this.manifest = new RenderManifest(this.outFolder + "/"
+					+ this.outManifestFile);
+		}
+		return this.manifest;
 	}
 
-	public static String runCmdOut(String... cmdString) {
-		// execute command and output last command output
-
-		String sout = "";
-		String s = null;
-		try {
-			// run an Unix command using the Runtime exec method:
-			for (int i = 0; i < cmdString.length; i++) {
-				System.out.print(cmdString[i] + " ");
-			}
-			System.out.print("\n");
+	public AnalysisCache getAnalysisCache() throws IOException {
+		// luminance measures of this project, opened on first use
+		if (this.analysisCache == null) {
+			new File(this.outFolderDeflick).mkdirs();
+			this.analysisCache = new AnalysisCache(this.outFolderDeflick + "/"
+					+ this.outAnalysisFile);
+		}
+		return this.analysisCache;
+	}
 
-			Process p = Runtime.getRuntime().exec(cmdString);
+	MovieEncoder newMovieEncoder() throws IOException {
+		// encoder of outFolder/video.avi
+		String output = this.outFolder + "/video.avi";
+		if (this.isMovieMencoder) {
+			return new MencoderEncoder(ToolRegistry.get(ToolRegistry.MENCODER)
+					.require("movie export"), output, this.movieFps,
+					this.movieQuality);
+		}
+		return new MjpegAviEncoder(output, this.movieFps, this.movieQuality);
+	}
 
-			BufferedReader stdInput = new BufferedReader(new InputStreamReader(
-					p.getInputStream()));
+	RenderFarm newRenderFarm() throws IOException {
+		// darktable-cli pool with the settings of this run
+		RenderFarm farm = new RenderFarm(ToolRegistry.get(
+				ToolRegistry.DARKTABLE_CLI).require("rendering"),
+				this.renderJobs, this.renderRetries);
+		farm.setTimeout(this.renderTimeout * 1000L);
+		if (this.renderBatch > 1) {
+			String version = ToolRegistry.get(ToolRegistry.DARKTABLE_CLI)
+					.getVersion();
+			if (!RenderFarm.isMultiInput(version)) {
+				System.out.println("darktable-cli " + version
+						+ ": one frame per darktable-cli (batches from"
+						+ " darktable 3.0)");
+				this.renderBatch = 1;
+			}
+		}
+		farm.setBatchSize(this.renderBatch);
+		return farm;
+	}
 
-			BufferedReader stdError = new BufferedReader(new InputStreamReader(
-					p.getErrorStream()));
+	public static void runCmd(String... cmdString) {
+		runCmdOut(cmdString);
+	}
 
-			// read the output from the command
-			while ((s = stdInput.readLine()) != null) {
-				System.out.println(s);
-				sout = s;
-			}
-			while ((s = stdError.readLine()) != null) {
-				System.out.println(s);
-			}
+	public static String runCmdOut(String... cmdString) {
+		// execute command and output last command output
+		return runCmdResult(0, cmdString).lastLine;
+	}
 
-			p.waitFor();
+	public static int runCmdExit(String... cmdString) {
+		// execute command and return its exit code
+		return runCmdResult(0, cmdString).exitCode;
+	}
 
-		} catch (IOException e) {
-			e.printStackTrace();
-			System.exit(-1);
-		} catch (InterruptedException e) {
-			e.printStackTrace();
+	public static ProcessResult runCmdResult(long timeoutMillis,
+			String... cmdString) {
+		// execute command (stopped after timeoutMillis if > 0), a command
+		// which cannot be run gives exit code -1
+		ProcessRunner runner = new ProcessRunner(cmdString);
+		runner.timeoutMillis = timeoutMillis;
+		ProcessResult result = runner.run();
+		if (result.isTimedOut) {
+			System.err.println(result);
 		}
-		return sout;
+		return result;
 	}
 }
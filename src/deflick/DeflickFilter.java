@@ -0,0 +1,270 @@
+package deflick;
+
+import java.io.BufferedWriter;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.Locale;
+
+public class DeflickFilter {
+
+	/**
+	 * DeflickFilter : deflickering target computed in Java, same filter as the
+	 * octave script of OctaveDeflickFcn (weighted window average, rejection
+	 * of spikes above dL_max, linear re-interpolation, final window average)
+	 * without launching octave
+	 */
+
+	// parameters of the filter (same as OctaveDeflickFcn)
+	public int lpFiltMinNum;
+	public int spikeFiltMinNum;
+	public double deltaLumThdMax;
+	public int coarseWinHalfSize;
+	public String outFolderDeflick;
+	public String outLuminanceFile;
+	public String imgSizeXY;
+
+	// signals of the last filtering (for plot)
+	public double[] inSignal;
+	public double[] filtSpikesSignal;
+	public double[] filtSignal;
+
+	public DeflickFilter(String outFolderDeflick, String outLuminanceFile) {
+		super();
+		// default parameters
+		this.lpFiltMinNum = 50;
+		this.spikeFiltMinNum = 12;
+		this.deltaLumThdMax = 0.02;
+		this.coarseWinHalfSize = 24;
+		this.imgSizeXY = "640,460";
+		// files config
+		this.outFolderDeflick = outFolderDeflick;
+		this.outLuminanceFile = outLuminanceFile;
+	}
+
+	public void setLpFiltMinNum(int lpFiltMinNum) {
+		this.lpFiltMinNum = lpFiltMinNum;
+	}
+
+	public void setSpikeFiltMinNum(int spikeFiltMinNum) {
+		this.spikeFiltMinNum = spikeFiltMinNum;
+	}
+
+	public void setDeltaLumThdMax(double deltaLumThdMax) {
+		this.deltaLumThdMax = deltaLumThdMax;
+	}
+
+	/**
+	 * compute deflickering target of a luminance signal
+	 *
+	 * @param in
+	 *            : luminance of each frame
+	 * @return target luminance of each frame
+	 */
+	public double[] filter(double[] in) {
+		int nTot = in.length;
+		this.inSignal = in.clone();
+		if (nTot < 2) {
+			// nothing to filter
+			this.filtSpikesSignal = in.clone();
+			this.filtSignal = in.clone();
+			return this.filtSignal.clone();
+		}
+
+		// first : coarse filtering with window averaging
+		double[] avgSignal = windowAverage(in, this.coarseWinHalfSize);
+
+		// standard variation of luminance wrt average
+		double[] delta = new double[nTot];
+		for (int i = 0; i < nTot; i++) {
+			delta[i] = avgSignal[i] - in[i];
+		}
+		double stdLum = std(delta);
+
+		// advanced filtering parameters
+		int nLpFilt = Math.min(this.lpFiltMinNum, nTot / 2);
+		double dLMax = Math.max(this.deltaLumThdMax, 1.5 * stdLum);
+
+		// filtering spikes : dL > dL_max
+		int[] notRejIdx = new int[nTot];
+		int nNotRej = 0;
+		for (int i = 0; i < nTot; i++) {
+			if (Math.abs(delta[i]) < dLMax) {
+				notRejIdx[nNotRej++] = i;
+			}
+		}
+		if (nNotRej < 2) {
+			// keep 1st and last index
+			int kept = (nNotRej == 1) ? notRejIdx[0] : 0;
+			nNotRej = 0;
+			notRejIdx[nNotRej++] = 0;
+			if (kept != 0 && kept != nTot - 1) {
+				notRejIdx[nNotRej++] = kept;
+			}
+			notRejIdx[nNotRej++] = nTot - 1;
+		}
+		// delete spikes and replace them by linear interpolated values
+		this.filtSpikesSignal = interpLinearExtrap(notRejIdx, nNotRej, in);
+
+		// final window-averaging
+		this.filtSignal = windowAverage(this.filtSpikesSignal, nLpFilt);
+		return this.filtSignal.clone();
+	}
+
+	/**
+	 * weighted average of the signal on a sliding window, weight of a sample
+	 * at distance k is 1/sqrt(|k|) (1 for the current sample). Window is cut
+	 * at the borders of the signal.
+	 */
+	public static double[] windowAverage(double[] in, int winHalfSize) {
+		int nTot = in.length;
+		int h = Math.max(0, winHalfSize);
+		double[] weight = new double[h + 1];
+		weight[0] = 1.0d;
+		for (int k = 1; k <= h; k++) {
+			weight[k] = 1.0d / Math.sqrt(k);
+		}
+		// cumulated weights: total weight of a cut window in O(1)
+		double[] weightCum = new double[h + 1];
+		weightCum[0] = weight[0];
+		for (int k = 1; k <= h; k++) {
+			weightCum[k] = weightCum[k - 1] + weight[k];
+		}
+
+		double[] out = new double[nTot];
+		for (int i = 0; i < nTot; i++) {
+			int before = Math.min(h, i);
+			int after = Math.min(h, nTot - 1 - i);
+			double sum = in[i];
+			for (int k = 1; k <= before; k++) {
+				sum += weight[k] * in[i - k];
+			}
+			for (int k = 1; k <= after; k++) {
+				sum += weight[k] * in[i + k];
+			}
+			double weightTot = weightCum[before] + weightCum[after] - 1.0d;
+			out[i] = sum / weightTot;
+		}
+		return out;
+	}
+
+	private static double std(double[] x) {
+		// standard deviation (normalised by N-1, as octave std)
+		int n = x.length;
+		if (n < 2) {
+			return 0;
+		}
+		double mean = 0;
+		for (double v : x) {
+			mean += v;
+		}
+		mean = mean / n;
+		double sum2 = 0;
+		for (double v : x) {
+			sum2 += (v - mean) * (v - mean);
+		}
+		return Math.sqrt(sum2 / (n - 1));
+	}
+
+	private static double[] interpLinearExtrap(int[] idx, int nIdx, double[] y) {
+		// y at all indices from y at idx[0..nIdx-1] (increasing), linear
+		// interpolation, extrapolation with the first/last segment
+		double[] out = new double[y.length];
+		int seg = 0; // current segment [idx[seg], idx[seg+1]]
+		for (int i = 0; i < y.length; i++) {
+			while (seg < nIdx - 2 && i > idx[seg + 1]) {
+				seg++;
+			}
+			int x0 = idx[seg];
+			int x1 = idx[seg + 1];
+			out[i] = y[x0] + (y[x1] - y[x0]) * (i - x0) / (double) (x1 - x0);
+		}
+		return out;
+	}
+
+	/**
+	 * write target luminance (_deflick.txt) and its graphics (_deflick.svg)
+	 * next to the luminance file, as the octave script does
+	 */
+	public void writeFiles() throws IOException {
+		String base = this.outFolderDeflick + "/"
+				+ this.outLuminanceFile.replaceAll(".txt", "");
+
+		BufferedWriter outTable = new BufferedWriter(new FileWriter(base
+				+ "_deflick.txt"));
+		for (double v : this.filtSignal) {
+			outTable.write(String.format(Locale.US, "%.6f", v) + "\n");
+		}
+		outTable.close();
+
+		BufferedWriter outSvg = new BufferedWriter(new FileWriter(base
+				+ "_deflick.svg"));
+		outSvg.write(this.plotSvg());
+		outSvg.close();
+
+		System.out.println("Deflickering files written...");
+	}
+
+	private String plotSvg() {
+		// input (blue), spikes removed (green), filtered (red)
+		String[] size = this.imgSizeXY.split(",");
+		int width = Integer.parseInt(size[0].trim());
+		int height = Integer.parseInt(size[1].trim());
+		int margin = 40;
+		double yMin = Double.MAX_VALUE;
+		double yMax = -Double.MAX_VALUE;
+		for (double[] signal : new double[][] { this.inSignal,
+				this.filtSpikesSignal, this.filtSignal }) {
+			for (double v : signal) {
+				yMin = Math.min(yMin, v);
+				yMax = Math.max(yMax, v);
+			}
+		}
+		if (yMax <= yMin) {
+			yMax = yMin + 1;
+		}
+		StringBuilder svg = new StringBuilder();
+		svg.append("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n");
+		svg.append("<svg xmlns=\"http://www.w3.org/2000/svg\" width=\""
+				+ width + "\" height=\"" + height + "\">\n");
+		svg.append("<rect x=\"" + margin + "\" y=\"" + margin / 2
+				+ "\" width=\"" + (width - 3 * margin / 2) + "\" height=\""
+				+ (height - 3 * margin / 2)
+				+ "\" fill=\"white\" stroke=\"gray\"/>\n");
+		svg.append("<text x=\"" + width / 2 + "\" y=\"" + (margin / 2 - 4)
+				+ "\" text-anchor=\"middle\" font-size=\"12\">"
+				+ "signal and filtered signal LP="
+				+ Math.min(this.lpFiltMinNum, this.inSignal.length / 2)
+				+ "</text>\n");
+		svg.append(this.polyline(this.inSignal, "blue", "", width, height,
+				margin, yMin, yMax));
+		svg.append(this.polyline(this.filtSpikesSignal, "green", "4,3",
+				width, height, margin, yMin, yMax));
+		svg.append(this.polyline(this.filtSignal, "red", "", width, height,
+				margin, yMin, yMax));
+		svg.append(String.format(Locale.US,
+				"<text x=\"2\" y=\"%d\" font-size=\"10\">%.3f</text>\n",
+				margin / 2 + 10, yMax));
+		svg.append(String.format(Locale.US,
+				"<text x=\"2\" y=\"%d\" font-size=\"10\">%.3f</text>\n",
+				height - margin, yMin));
+		svg.append("</svg>\n");
+		return svg.toString();
+	}
+
+	private String polyline(double[] signal, String color, String dash,
+			int width, int height, int margin, double yMin, double yMax) {
+		StringBuilder points = new StringBuilder();
+		double xScale = (width - 3.0d * margin / 2)
+				/ Math.max(1, signal.length - 1);
+		double yScale = (height - 3.0d * margin / 2) / (yMax - yMin);
+		for (int i = 0; i < signal.length; i++) {
+			points.append(String.format(Locale.US, "%.1f,%.1f ", margin + i
+					* xScale, height - margin - (signal[i] - yMin) * yScale));
+		}
+		return "<polyline fill=\"none\" stroke=\"" + color
+				+ "\" stroke-width=\"1\""
+				+ (dash.isEmpty() ? "" : " stroke-dasharray=\"" + dash + "\"")
+				+ " points=\"" + points.toString().trim() + "\"/>\n";
+	}
+
+}
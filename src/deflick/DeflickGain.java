@@ -0,0 +1,283 @@
+package deflick;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.WritableRaster;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageOutputStream;
+
+public class DeflickGain {
+
+	/**
+	 * DeflickGain : deflickering of a rendered frame (8 or 16-bit PNG, sRGB;
+	 * no TIFF: not in the JDK ImageIO) without a new darktable development. Pixels are scaled in linear
+	 * light by the gain which changes the frame luminance (as measured by
+	 * LuminanceAnalyzer) by the deflickering ratio. Colours keep their
+	 * ratios: a pixel pushed over white is scaled less, hue is not changed.
+	 * Rows are processed by tiles in a shared pool. The result is written in
+	 * the same format or as a JPG (8 bits, encoded from the 16-bit values).
+	 */
+
+	private static final int ENCODE_BITS = 20; // linear resolution of encode
+	private static final int SOLVE_PIXELS = 65536; // pixels to solve gain
+	private static final double MAX_EV = 4; // gain range: 2^-4 .. 2^4
+	private static final float JPG_QUALITY = 0.95f; // darktable default
+
+	private ExecutorService tilePool;
+	private int nThreads;
+	public int tileRows; // rows of a tile
+
+	// sRGB transfer tables, per sample size (8 or 16 bits)
+	private static float[][] toLinear = new float[17][];
+	private static int[][] toEncoded = new int[17][];
+
+	public DeflickGain(int nThreads) {
+		super();
+		this.nThreads = Math.max(1, nThreads);
+		this.tileRows = 64;
+		this.tilePool = Executors.newFixedThreadPool(this.nThreads);
+	}
+
+	public void shutdown() {
+		this.tilePool.shutdown();
+	}
+
+	/**
+	 * apply the deflickering gain to a frame
+	 *
+	 * @param frame
+	 *            : rendered frame
+	 * @param out
+	 *            : deflickered frame (could be frame), format of its
+	 *            extension: png or jpg
+	 * @param lumRatio
+	 *            : luminance after / before deflickering
+	 * @return gain applied in linear light
+	 * @throws IOException
+	 */
+	public double apply(File frame, File out, double lumRatio)
+			throws IOException {
+		BufferedImage img = ImageIO.read(frame);
+		if (img == null) {
+			throw new IOException("not an image: " + frame);
+		}
+		WritableRaster raster = img.getRaster();
+		int bits = raster.getSampleModel().getSampleSize(0);
+		if (bits != 8 && bits != 16) {
+			throw new IOException(frame + ": " + bits
+					+ " bits samples not supported");
+		}
+		float[] lin = linearTable(bits);
+		String name = out.getName();
+		String format = name.substring(name.lastIndexOf('.') + 1)
+				.toLowerCase();
+		if (format.equals("jpeg")) {
+			format = "jpg";
+		}
+
+		double gain = this.solveGain(raster, lin, encodedTable(bits),
+				lumRatio);
+		BufferedImage result = img;
+		if (format.equals("jpg")) {
+			// 8-bit RGB (or grey), alpha dropped
+			result = new BufferedImage(img.getWidth(), img.getHeight(),
+					(raster.getNumBands() >= 3) ? BufferedImage.TYPE_3BYTE_BGR
+							: BufferedImage.TYPE_BYTE_GRAY);
+		}
+		this.scale(raster, result.getRaster(), lin, encodedTable(result
+				.getRaster().getSampleModel().getSampleSize(0)), (float) gain);
+
+		// written next to the output, then moved on it
+		File tmp = new File(out.getAbsoluteFile().getParentFile(), "." + name
+				+ ".gain");
+		if (format.equals("jpg")) {
+			writeJpg(result, tmp);
+		} else if (!ImageIO.write(result, format, tmp)) {
+			tmp.delete();
+			throw new IOException("no " + format + " writer for " + out);
+		}
+		Files.move(tmp.toPath(), out.toPath(),
+				StandardCopyOption.REPLACE_EXISTING);
+		return gain;
+	}
+
+	private static void writeJpg(BufferedImage img, File file)
+			throws IOException {
+		ImageWriter writer = ImageIO.getImageWritersByFormatName("jpeg")
+				.next();
+		ImageOutputStream ios = ImageIO.createImageOutputStream(file);
+		try {
+			writer.setOutput(ios);
+			ImageWriteParam param = writer.getDefaultWriteParam();
+			param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+			param.setCompressionQuality(JPG_QUALITY);
+			writer.write(null, new IIOImage(img, null, null), param);
+		} finally {
+			writer.dispose();
+			ios.close();
+		}
+	}
+
+	private double solveGain(WritableRaster raster, float[] lin, int[] enc,
+			double lumRatio) {
+		// gain (bisection in EV) for which the mean luminance of a subsample
+		// of pixels is multiplied by lumRatio
+		int width = raster.getWidth();
+		int height = raster.getHeight();
+		int nBands = raster.getNumBands();
+		int step = Math.max(1,
+				(int) Math.sqrt((double) width * height / SOLVE_PIXELS));
+		int n = ((width + step - 1) / step) * ((height + step - 1) / step);
+		float[][] rgb = new float[3][n];
+		int[] row = new int[width * nBands];
+		int k = 0;
+		for (int y = 0; y < height; y += step) {
+			raster.getPixels(raster.getMinX(), raster.getMinY() + y, width, 1,
+					row);
+			for (int x = 0; x < width; x += step) {
+				for (int c = 0; c < 3; c++) {
+					rgb[c][k] = lin[row[x * nBands + Math.min(c, nBands - 1)]];
+				}
+				k += 1;
+			}
+		}
+
+		double target = lumRatio * meanLuminance(rgb, 1f, enc, lin.length - 1);
+		double evLow = -MAX_EV;
+		double evHigh = MAX_EV;
+		for (int i = 0; i < 30; i++) {
+			double ev = (evLow + evHigh) / 2;
+			if (meanLuminance(rgb, (float) Math.pow(2, ev), enc,
+					lin.length - 1) < target) {
+				evLow = ev;
+			} else {
+				evHigh = ev;
+			}
+		}
+		return Math.pow(2, (evLow + evHigh) / 2);
+	}
+
+	private static double meanLuminance(float[][] rgb, float gain, int[] enc,
+			int maxValue) {
+		// mean Rec.709 luminance of encoded values (see LuminanceAnalyzer)
+		double sum = 0;
+		int[] out = new int[3];
+		for (int i = 0; i < rgb[0].length; i++) {
+			scalePixel(rgb[0][i], rgb[1][i], rgb[2][i], gain, enc, out);
+			sum += LuminanceAnalyzer.KR * out[0] + LuminanceAnalyzer.KG
+					* out[1] + LuminanceAnalyzer.KB * out[2];
+		}
+		return sum / rgb[0].length / maxValue;
+	}
+
+	private void scale(final WritableRaster raster,
+			final WritableRaster result, final float[] lin, final int[] enc,
+			final float gain) throws IOException {
+		// all tiles of rows in parallel, each pixel of raster scaled into
+		// result (could be raster: other bands, e.g. alpha, are kept)
+		final int width = raster.getWidth();
+		final int nBands = raster.getNumBands();
+		final int nOut = result.getNumBands();
+		List<Future<?>> tiles = new ArrayList<Future<?>>();
+		for (int y0 = 0; y0 < raster.getHeight(); y0 += this.tileRows) {
+			final int y = y0;
+			final int rows = Math.min(this.tileRows, raster.getHeight() - y0);
+			tiles.add(this.tilePool.submit(new Callable<Void>() {
+				@Override
+				public Void call() {
+					int[] pixels = new int[width * rows * nBands];
+					int[] scaled = (result == raster) ? pixels
+							: new int[width * rows * nOut];
+					int[] out = new int[3];
+					raster.getPixels(raster.getMinX(), raster.getMinY() + y,
+							width, rows, pixels);
+					for (int i = 0, o = 0; i < pixels.length; i += nBands, o += nOut) {
+						if (nBands >= 3) {
+							scalePixel(lin[pixels[i]], lin[pixels[i + 1]],
+									lin[pixels[i + 2]], gain, enc, out);
+							scaled[o] = out[0];
+							scaled[o + 1] = out[1];
+							scaled[o + 2] = out[2];
+						} else {
+							// grey (+ alpha)
+							float g = lin[pixels[i]];
+							scalePixel(g, g, g, gain, enc, out);
+							scaled[o] = out[0];
+						}
+					}
+					result.setPixels(result.getMinX(), result.getMinY() + y,
+							width, rows, scaled);
+					return null;
+				}
+			}));
+		}
+		try {
+			for (Future<?> tile : tiles) {
+				tile.get();
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("deflickering gain interrupted", e);
+		} catch (ExecutionException e) {
+			throw new IOException(e.getCause());
+		}
+	}
+
+	private static void scalePixel(float r, float g, float b, float gain,
+			int[] enc, int[] out) {
+		// same factor on the 3 channels, lowered to keep the max channel <= 1
+		float max = Math.max(r, Math.max(g, b));
+		float k = (max * gain > 1) ? 1 / max : gain;
+		int top = enc.length - 1;
+		out[0] = enc[(int) (r * k * top + 0.5f)];
+		out[1] = enc[(int) (g * k * top + 0.5f)];
+		out[2] = enc[(int) (b * k * top + 0.5f)];
+	}
+
+	private static synchronized float[] linearTable(int bits) {
+		// encoded sample => linear [0,1]
+		if (toLinear[bits] == null) {
+			int maxValue = (1 << bits) - 1;
+			float[] table = new float[maxValue + 1];
+			for (int v = 0; v <= maxValue; v++) {
+				double e = (double) v / maxValue;
+				table[v] = (float) ((e <= 0.04045) ? e / 12.92 : Math.pow(
+						(e + 0.055) / 1.055, 2.4));
+			}
+			toLinear[bits] = table;
+		}
+		return toLinear[bits];
+	}
+
+	private static synchronized int[] encodedTable(int bits) {
+		// linear [0,1] (2^ENCODE_BITS steps) => encoded sample
+		if (toEncoded[bits] == null) {
+			int maxValue = (1 << bits) - 1;
+			int top = (1 << ENCODE_BITS) - 1;
+			int[] table = new int[top + 1];
+			for (int i = 0; i <= top; i++) {
+				double l = (double) i / top;
+				double e = (l <= 0.0031308) ? l * 12.92 : 1.055 * Math.pow(l,
+						1 / 2.4) - 0.055;
+				table[i] = (int) Math.round(e * maxValue);
+			}
+			toEncoded[bits] = table;
+		}
+		return toEncoded[bits];
+	}
+
+}
@@ -0,0 +1,193 @@
+package deflick;
+
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.awt.image.Raster;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+
+public class LuminanceAnalyzer {
+
+	/**
+	 * LuminanceAnalyzer : Rec.709 luminance of an image file (JPG, PNG, TIFF
+	 * if a reader is available) computed in the JVM. The image is decoded
+	 * with pixel subsampling, so the full resolution raster is never built.
+	 * Mean value is the one of "convert img -scale 1x1! -format
+	 * %[fx:luminance] info:"
+	 */
+
+	// Rec.709 coefficients, as used by ImageMagick
+	public static final double KR = 0.212656;
+	public static final double KG = 0.715158;
+	public static final double KB = 0.072186;
+
+	public int maxSize; // max size of the decoded image (0: no subsampling)
+	public Rectangle roi; // region of interest in source pixels (null: all)
+	public int nBins; // histogram bins
+
+	public LuminanceAnalyzer() {
+		super();
+		this.maxSize = 256;
+		this.roi = null;
+		this.nBins = 256;
+	}
+
+	public LuminanceStats analyze(String imgPath) throws IOException {
+		return this.analyze(new File(imgPath));
+	}
+
+	public LuminanceStats analyze(File imgFile) throws IOException {
+		ImageInputStream iis = ImageIO.createImageInputStream(imgFile);
+		if (iis == null) {
+			throw new IOException("Cannot read " + imgFile);
+		}
+		try {
+			return this.analyze(iis, imgFile.getPath());
+		} finally {
+			iis.close();
+		}
+	}
+
+	/**
+	 * luminance of the embedded preview (largest JPG) of a RAW file, as
+	 * rendered by the camera: no darktable development is needed
+	 */
+	public LuminanceStats analyzeRawPreview(File rawFile) throws IOException {
+		ImageInputStream iis = ImageIO.createImageInputStream(rawFile);
+		if (iis == null) {
+			throw new IOException("Cannot read " + rawFile);
+		}
+		try {
+			long offset = findRawPreview(iis, rawFile.getPath());
+			iis.seek(offset);
+			return this.analyze(iis, rawFile.getPath());
+		} finally {
+			iis.close();
+		}
+	}
+
+	private static long findRawPreview(ImageInputStream iis, String name)
+			throws IOException {
+		// scan for JPG start markers (FF D8 FF), keep the widest decodable
+		// image (thumbnails and lossless raw data are skipped)
+		long bestOffset = -1;
+		int bestWidth = 0;
+		byte[] buf = new byte[1 << 16];
+		long bufStart = 0;
+		int n;
+		int prev1 = 0; // 2 bytes before buf (marker across two reads)
+		int prev2 = 0;
+		ArrayList<Long> offsets = new ArrayList<Long>();
+		iis.seek(0);
+		while ((n = iis.read(buf)) > 0) {
+			for (int i = 0; i < n; i++) {
+				int b = buf[i] & 0xff;
+				if (prev2 == 0xff && prev1 == 0xd8 && b == 0xff) {
+					offsets.add(bufStart + i - 2);
+				}
+				prev2 = prev1;
+				prev1 = b;
+			}
+			bufStart += n;
+		}
+		for (long offset : offsets) {
+			// new reader for each try: a failed header leaves it unusable
+			ImageReader reader = ImageIO.getImageReadersByFormatName("jpeg")
+					.next();
+			try {
+				iis.seek(offset);
+				reader.setInput(iis, true, true);
+				int width = reader.getWidth(0);
+				if (width > bestWidth) {
+					bestWidth = width;
+					bestOffset = offset;
+				}
+			} catch (IOException e) {
+				// not a JPG (or not decodable): next one
+			} catch (RuntimeException e) {
+				// same, for random bytes
+			} finally {
+				reader.dispose();
+			}
+		}
+		if (bestOffset < 0) {
+			throw new IOException("No JPG preview found in " + name);
+		}
+		return bestOffset;
+	}
+
+	public LuminanceStats analyze(ImageInputStream iis, String name)
+			throws IOException {
+		/** image read at the current position of iis **/
+		Iterator<ImageReader> readers = ImageIO.getImageReaders(iis);
+		if (!readers.hasNext()) {
+			throw new IOException("No image reader for " + name);
+		}
+		ImageReader reader = readers.next();
+		try {
+			reader.setInput(iis, true, true);
+			Rectangle region = new Rectangle(0, 0, reader.getWidth(0),
+					reader.getHeight(0));
+			if (this.roi != null) {
+				region = region.intersection(this.roi);
+				if (region.isEmpty()) {
+					throw new IOException("ROI " + this.roi
+							+ " out of image " + name);
+				}
+			}
+			ImageReadParam param = reader.getDefaultReadParam();
+			param.setSourceRegion(region);
+			int period = 1;
+			if (this.maxSize > 0) {
+				period = Math.max(1, (Math.max(region.width, region.height)
+						+ this.maxSize - 1) / this.maxSize);
+			}
+			param.setSourceSubsampling(period, period, 0, 0);
+			return this.analyze(reader.read(0, param));
+		} finally {
+			reader.dispose();
+		}
+	}
+
+	public LuminanceStats analyze(BufferedImage img) {
+		/** all pixels of img (already decoded) **/
+		Raster raster = img.getRaster();
+		int nBands = raster.getNumBands();
+		int width = raster.getWidth();
+		int height = raster.getHeight();
+		double[] scale = new double[nBands];
+		for (int b = 0; b < nBands; b++) {
+			// normalisation of samples (8 or 16 bits) to [0,1]
+			scale[b] = 1.0d / ((1 << raster.getSampleModel().getSampleSize(b)) - 1);
+		}
+
+		LuminanceStats stats = new LuminanceStats(this.nBins);
+		int[] row = new int[width * nBands];
+		for (int y = 0; y < height; y++) {
+			raster.getPixels(raster.getMinX(), raster.getMinY() + y, width, 1,
+					row);
+			for (int x = 0; x < width; x++) {
+				int i = x * nBands;
+				double lum;
+				if (nBands >= 3) {
+					lum = KR * row[i] * scale[0] + KG * row[i + 1] * scale[1]
+							+ KB * row[i + 2] * scale[2];
+				} else {
+					// grey (+ alpha)
+					lum = row[i] * scale[0];
+				}
+				stats.add(lum);
+			}
+		}
+		stats.close();
+		return stats;
+	}
+
+}
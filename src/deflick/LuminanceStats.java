@@ -0,0 +1,50 @@
+package deflick;
+
+public class LuminanceStats {
+
+	/**
+	 * LuminanceStats : luminance of an image (values in [0,1]), mean and
+	 * histogram of the sampled pixels
+	 */
+
+	public double mean;
+	public long[] histogram; // nb of pixels per bin, bins of [0,1]
+	public long count; // nb of sampled pixels
+
+	public LuminanceStats(int nBins) {
+		super();
+		this.mean = 0;
+		this.histogram = new long[nBins];
+		this.count = 0;
+	}
+
+	public void add(double lum) {
+		// running sum in mean, see close()
+		this.mean += lum;
+		int bin = (int) (lum * this.histogram.length);
+		bin = Math.max(0, Math.min(this.histogram.length - 1, bin));
+		this.histogram[bin] += 1;
+		this.count += 1;
+	}
+
+	public void close() {
+		// sum => mean
+		if (this.count > 0) {
+			this.mean = this.mean / this.count;
+		}
+	}
+
+	public double percentile(double p) {
+		/** luminance below which p % of the pixels are (center of the bin) **/
+		long target = (long) Math.ceil(p / 100 * this.count);
+		long cumul = 0;
+		for (int i = 0; i < this.histogram.length; i++) {
+			cumul += this.histogram[i];
+			if (cumul >= target && cumul > 0) {
+				return (i + 0.5) / this.histogram.length;
+			}
+		}
+		return 1.0;
+	}
+
+}
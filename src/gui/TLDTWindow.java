@@ -8,8 +8,12 @@ import java.util.ArrayList;
 import org.apache.pivot.beans.BXMLSerializer;
 import org.apache.pivot.collections.Map;
 import org.apache.pivot.collections.Sequence;
+import org.apache.pivot.util.concurrent.Task;
+import org.apache.pivot.util.concurrent.TaskExecutionException;
+import org.apache.pivot.util.concurrent.TaskListener;
 import org.apache.pivot.wtk.Alert;
 import org.apache.pivot.wtk.Application;
+import org.apache.pivot.wtk.ApplicationContext;
 import org.apache.pivot.wtk.Button;
 import org.apache.pivot.wtk.ButtonGroup;
 import org.apache.pivot.wtk.ButtonPressListener;
@@ -25,11 +29,13 @@ import org.apache.pivot.wtk.Sheet;
 import org.apache.pivot.wtk.SheetCloseListener;
 import org.apache.pivot.wtk.Slider;
 import org.apache.pivot.wtk.SliderValueListener;
+import org.apache.pivot.wtk.TaskAdapter;
 import org.apache.pivot.wtk.TextArea;
 import org.apache.pivot.wtk.TextInput;
 import org.apache.pivot.wtk.Window;
 
 import utils.FileOp;
+import utils.ProgressListener;
 
 import com.martiansoftware.jsap.JSAPException;
 
@@ -46,6 +52,7 @@ public class TLDTWindow implements Application {
 	private Button buttonBrowseImgSrc = null;
 	private Button buttonBrowseOut = null;
 	private Button buttonLoadKeyframes = null;
+	private Label labelLoadState = null;
 	private Button buttonGenerateTimelapse = null;
 	// general
 	private Checkbox cbIsDeflick = null;
@@ -101,6 +108,8 @@ public class TLDTWindow implements Application {
 				"buttonBrowseOut");
 		buttonLoadKeyframes = (Button) bxmlSerializer.getNamespace().get(
 				"buttonLoadKeyframes");
+		labelLoadState = (Label) bxmlSerializer.getNamespace().get(
+				"labelLoadState");
 		buttonGenerateTimelapse = (Button) bxmlSerializer.getNamespace().get(
 				"buttonGenerateTimelapse");
 		cbIsDeflick = (Checkbox) bxmlSerializer.getNamespace().get("isDeflick");
@@ -306,16 +315,58 @@ public class TLDTWindow implements Application {
 	}
 
 	private void loadXmpKeyframes() {
-		// instantiate TLDTCore with CLI arguments
-		try {
-			this.core = new TLDTCore(genCliOptions());
-			this.isInitDone = true;
-			this.isInterpolationDone = false;
-		} catch (JSAPException e) {
-			e.printStackTrace();
-		} catch (IOException e) {
-			e.printStackTrace();
-		}
+		// instantiate TLDTCore with CLI arguments, in a background task: XMP
+		// files read are counted in labelLoadState
+		final String[] cliOptions = genCliOptions();
+		final int[] nShown = { 0 }; // UI thread only
+		final ProgressListener listener = new ProgressListener() {
+			@Override
+			public void progress(final int done, final int total) {
+				ApplicationContext.queueCallback(new Runnable() {
+					@Override
+					public void run() {
+						// callbacks of reader threads could come unordered
+						if (done > nShown[0]) {
+							nShown[0] = done;
+							labelLoadState.setText("reading XMP files: " + done
+									+ "/" + total);
+						}
+					}
+				});
+			}
+		};
+		Task<TLDTCore> task = new Task<TLDTCore>() {
+			@Override
+			public TLDTCore execute() throws TaskExecutionException {
+				try {
+					return new TLDTCore(cliOptions, listener);
+				} catch (JSAPException e) {
+					throw new TaskExecutionException(e);
+				} catch (IOException e) {
+					throw new TaskExecutionException(e);
+				}
+			}
+		};
+		this.isInitDone = false;
+		this.buttonLoadKeyframes.setEnabled(false);
+		this.labelLoadState.setText("reading XMP files...");
+		task.execute(new TaskAdapter<TLDTCore>(new TaskListener<TLDTCore>() {
+			@Override
+			public void taskExecuted(Task<TLDTCore> task) {
+				core = task.getResult();
+				isInitDone = true;
+				isInterpolationDone = false;
+				labelLoadState.setText("keyframes loaded");
+				buttonLoadKeyframes.setEnabled(true);
+			}
+
+			@Override
+			public void executeFailed(Task<TLDTCore> task) {
+				task.getFault().printStackTrace();
+				labelLoadState.setText("loading failed");
+				buttonLoadKeyframes.setEnabled(true);
+			}
+		}));
 	}
 
 	private void generateTimelapse() {
@@ -0,0 +1,92 @@
+package movie;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.TreeMap;
+
+public class FrameReorderBuffer {
+
+	/**
+	 * FrameReorderBuffer : frames rendered in any order are given to the
+	 * encoder in movie order. A frame is kept until all frames before it are
+	 * done (or known as missing), only its file name is kept in memory:
+	 * memory depends on the frames waiting, not on the movie length. Frames
+	 * could be deleted once encoded (frames rendered for the movie only).
+	 */
+
+	private static final File MISSING = new File("");
+
+	private MovieEncoder encoder;
+	private int nFrames;
+	private TreeMap<Integer, File> pending; // done, not encoded yet
+	private int next; // next frame for the encoder
+	private int maxPending;
+	private int nMissing;
+	private boolean isDeleteEncoded;
+
+	public FrameReorderBuffer(MovieEncoder encoder, int nFrames) {
+		super();
+		this.encoder = encoder;
+		this.nFrames = nFrames;
+		this.pending = new TreeMap<Integer, File>();
+		this.next = 0;
+		this.maxPending = 0;
+		this.nMissing = 0;
+		this.isDeleteEncoded = false;
+	}
+
+	public void setDeleteEncoded(boolean isDeleteEncoded) {
+		// never before close if the encoder reads frames again
+		this.isDeleteEncoded = isDeleteEncoded
+				&& !this.encoder.isReadingOnClose();
+	}
+
+	public synchronized void put(int index, File frame) throws IOException {
+		// frame done: encode it with next ones if it is the expected one
+		this.pending.put(index, frame);
+		this.maxPending = Math.max(this.maxPending, this.pending.size());
+		this.flush();
+	}
+
+	public synchronized void skip(int index) throws IOException {
+		// frame which will never be done (failed)
+		this.pending.put(index, MISSING);
+		this.flush();
+	}
+
+	public synchronized void finish() throws IOException {
+		// all frames not done yet are missing
+		while (this.next < this.nFrames) {
+			if (this.pending.containsKey(this.next)) {
+				this.flush();
+			} else {
+				this.nMissing += 1;
+				this.next += 1;
+			}
+		}
+		if (this.nMissing > 0) {
+			System.err.println(this.nMissing + " missing frame(s) in "
+					+ this.encoder.getOutput());
+		}
+	}
+
+	public int getMaxPending() {
+		return this.maxPending;
+	}
+
+	private void flush() throws IOException {
+		while (this.next < this.nFrames && this.pending.containsKey(this.next)) {
+			File frame = this.pending.remove(this.next);
+			if (frame == MISSING) {
+				this.nMissing += 1;
+			} else {
+				this.encoder.addFrame(frame);
+				if (this.isDeleteEncoded) {
+					frame.delete();
+				}
+			}
+			this.next += 1;
+		}
+	}
+
+}
@@ -0,0 +1,83 @@
+package movie;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.Locale;
+
+import utils.ProcessResult;
+import utils.ProcessRunner;
+
+public class MencoderEncoder implements MovieEncoder {
+
+	/**
+	 * MencoderEncoder : movie made by mencoder (MJPEG) from the list of the
+	 * frames, encoded when the movie is closed. Frames are given to mencoder
+	 * in movie order by a list file, not by a glob on the folder.
+	 */
+
+	private String mencoderBin;
+	private String output;
+	private double fps;
+	private int quality; // 1..100, 0: mencoder default
+	private File listFile;
+	private BufferedWriter list;
+	private int nFrames;
+
+	public MencoderEncoder(String mencoderBin, String output, double fps,
+			int quality) throws IOException {
+		super();
+		this.mencoderBin = mencoderBin;
+		this.output = output;
+		this.fps = fps;
+		this.quality = Math.max(0, Math.min(100, quality));
+		this.listFile = new File(output + ".frames.txt");
+		this.list = new BufferedWriter(new FileWriter(this.listFile));
+		this.nFrames = 0;
+	}
+
+	@Override
+	public String getOutput() {
+		return this.output;
+	}
+
+	@Override
+	public boolean isReadingOnClose() {
+		return true;
+	}
+
+	@Override
+	public void addFrame(File frame) throws IOException {
+		this.list.write(frame.getAbsolutePath() + "\n");
+		this.nFrames += 1;
+	}
+
+	@Override
+	public void close() throws IOException {
+		this.list.close();
+		try {
+			if (this.nFrames == 0) {
+				System.err.println("no frame: " + this.output + " not written");
+				return;
+			}
+			String lavcopts = "vcodec=mjpeg";
+			if (this.quality > 0) {
+				// quality 100 => vqscale 2 (best), 1 => 31 (worst)
+				lavcopts += ":vqscale="
+						+ Math.round(2 + (100 - this.quality) * 29 / 99.0);
+			}
+			ProcessResult result = new ProcessRunner(this.mencoderBin, "mf://@"
+					+ this.listFile.getPath(), "-nosound", "-ovc", "lavc",
+					"-lavcopts", lavcopts, "-mf", "fps="
+							+ String.format(Locale.US, "%s", this.fps), "-o",
+					this.output).run();
+			if (!result.isOk()) {
+				throw new IOException("mencoder failed: " + result);
+			}
+		} finally {
+			this.listFile.delete();
+		}
+	}
+
+}
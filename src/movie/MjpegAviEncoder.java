@@ -0,0 +1,240 @@
+package movie;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.util.Iterator;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReader;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageInputStream;
+import javax.imageio.stream.ImageOutputStream;
+
+public class MjpegAviEncoder implements MovieEncoder {
+
+	/**
+	 * MjpegAviEncoder : MJPEG movie in an AVI container, written in Java.
+	 * Each frame is a JPG chunk of the 'movi' list: rendered JPG are copied
+	 * as they are (quality 0) or encoded again with the given quality, other
+	 * formats (16-bit PNG...) are encoded (quality 95 if 0). Only
+	 * the index (16 bytes per frame) is kept in memory, headers are
+	 * completed when the movie is closed. AVI 1.0: movie up to 4 GB.
+	 */
+
+	private static final int AVIF_HASINDEX = 0x10;
+	private static final int AVIIF_KEYFRAME = 0x10;
+	private static final long MAX_SIZE = 0xFFFFFFFFL;
+	private static final int HEADERS_SIZE = 224; // RIFF to 'movi'
+
+	private String output;
+	private double fps;
+	private int quality; // 1..100, 0: frames copied
+	private FileChannel channel;
+	private RandomAccessFile raf;
+	private int width;
+	private int height;
+	private int nFrames;
+	private int maxFrameSize;
+	private long moviPos; // position of 'movi' fourcc
+	private ByteArrayOutputStream index;
+
+	public MjpegAviEncoder(String output, double fps, int quality) {
+		super();
+		this.output = output;
+		this.fps = fps;
+		this.quality = Math.max(0, Math.min(100, quality));
+		this.nFrames = 0;
+		this.maxFrameSize = 0;
+		this.index = new ByteArrayOutputStream();
+	}
+
+	@Override
+	public String getOutput() {
+		return this.output;
+	}
+
+	@Override
+	public boolean isReadingOnClose() {
+		return false;
+	}
+
+	@Override
+	public void addFrame(File frame) throws IOException {
+		byte[] jpg = (this.quality == 0 && isJpg(frame)) ? Files
+				.readAllBytes(frame.toPath()) : this.encode(frame);
+		if (this.channel == null) {
+			this.open(frame);
+		}
+		long pos = this.channel.position();
+		if (pos + 8 + jpg.length + 1 + 16L * (this.nFrames + 1) + 8 > MAX_SIZE) {
+			throw new IOException(this.output + ": AVI file over 4 GB");
+		}
+		ByteBuffer header = le(8);
+		header.put(fourcc("00dc")).putInt(jpg.length).flip();
+		this.write(header);
+		this.write(ByteBuffer.wrap(jpg));
+		if (jpg.length % 2 != 0) {
+			this.write(ByteBuffer.wrap(new byte[1])); // chunks are word aligned
+		}
+		ByteBuffer entry = le(16);
+		entry.put(fourcc("00dc")).putInt(AVIIF_KEYFRAME)
+				.putInt((int) (pos - this.moviPos)).putInt(jpg.length);
+		this.index.write(entry.array());
+		this.nFrames += 1;
+		this.maxFrameSize = Math.max(this.maxFrameSize, jpg.length);
+	}
+
+	@Override
+	public void close() throws IOException {
+		if (this.channel == null) {
+			System.err.println("no frame: " + this.output + " not written");
+			return;
+		}
+		try {
+			// index, then headers with final sizes and counts
+			long moviEnd = this.channel.position();
+			ByteBuffer idx = le(8);
+			idx.put(fourcc("idx1")).putInt(this.index.size()).flip();
+			this.write(idx);
+			this.write(ByteBuffer.wrap(this.index.toByteArray()));
+			long end = this.channel.position();
+			ByteBuffer headers = this.headers((int) (end - 8),
+					(int) (moviEnd - this.moviPos));
+			this.channel.write(headers, 0);
+		} finally {
+			this.channel.close();
+			this.raf.close();
+			this.channel = null;
+		}
+		System.out.println(this.nFrames + " frame(s) written in " + this.output);
+	}
+
+	private void open(File firstFrame) throws IOException {
+		// movie size is the size of its first frame
+		ImageInputStream iis = ImageIO.createImageInputStream(firstFrame);
+		if (iis == null) {
+			throw new IOException("cannot read " + firstFrame);
+		}
+		try {
+			Iterator<ImageReader> readers = ImageIO.getImageReaders(iis);
+			if (!readers.hasNext()) {
+				throw new IOException("not an image: " + firstFrame);
+			}
+			ImageReader reader = readers.next();
+			try {
+				reader.setInput(iis, true, true);
+				this.width = reader.getWidth(0);
+				this.height = reader.getHeight(0);
+			} finally {
+				reader.dispose();
+			}
+		} finally {
+			iis.close();
+		}
+
+		new File(this.output).delete();
+		this.raf = new RandomAccessFile(this.output, "rw");
+		this.channel = this.raf.getChannel();
+		this.write(this.headers(0, 4)); // completed by close
+		this.moviPos = this.channel.position() - 4;
+	}
+
+	private ByteBuffer headers(int riffSize, int moviSize) {
+		int microSecPerFrame = (int) Math.round(1e6 / this.fps);
+		int rate = (int) Math.round(this.fps * 1000);
+		ByteBuffer b = le(HEADERS_SIZE);
+		b.put(fourcc("RIFF")).putInt(riffSize).put(fourcc("AVI "));
+		b.put(fourcc("LIST")).putInt(192).put(fourcc("hdrl"));
+		// main header
+		b.put(fourcc("avih")).putInt(56);
+		b.putInt(microSecPerFrame);
+		b.putInt((int) Math.min(Integer.MAX_VALUE,
+				(long) this.maxFrameSize * rate / 1000));
+		b.putInt(0).putInt(AVIF_HASINDEX);
+		b.putInt(this.nFrames).putInt(0).putInt(1);
+		b.putInt(this.maxFrameSize + 8);
+		b.putInt(this.width).putInt(this.height);
+		b.putInt(0).putInt(0).putInt(0).putInt(0);
+		// stream header
+		b.put(fourcc("LIST")).putInt(116).put(fourcc("strl"));
+		b.put(fourcc("strh")).putInt(56);
+		b.put(fourcc("vids")).put(fourcc("MJPG"));
+		b.putInt(0).putShort((short) 0).putShort((short) 0).putInt(0);
+		b.putInt(1000).putInt(rate).putInt(0).putInt(this.nFrames);
+		b.putInt(this.maxFrameSize + 8).putInt(-1).putInt(0);
+		b.putShort((short) 0).putShort((short) 0)
+				.putShort((short) this.width).putShort((short) this.height);
+		// stream format (BITMAPINFOHEADER)
+		b.put(fourcc("strf")).putInt(40);
+		b.putInt(40).putInt(this.width).putInt(this.height);
+		b.putShort((short) 1).putShort((short) 24).put(fourcc("MJPG"));
+		b.putInt(this.width * this.height * 3);
+		b.putInt(0).putInt(0).putInt(0).putInt(0);
+		// frames list
+		b.put(fourcc("LIST")).putInt(moviSize).put(fourcc("movi"));
+		b.flip();
+		return b;
+	}
+
+	private byte[] encode(File frame) throws IOException {
+		// frame encoded again with the movie quality
+		BufferedImage img = ImageIO.read(frame);
+		if (img == null) {
+			throw new IOException("not an image: " + frame);
+		}
+		if (img.getType() != BufferedImage.TYPE_3BYTE_BGR
+				&& img.getType() != BufferedImage.TYPE_INT_RGB) {
+			// 8-bit RGB for the JPEG writer (16-bit, alpha...)
+			BufferedImage rgb = new BufferedImage(img.getWidth(),
+					img.getHeight(), BufferedImage.TYPE_INT_RGB);
+			rgb.createGraphics().drawImage(img, 0, 0, null);
+			img = rgb;
+		}
+		ImageWriter writer = ImageIO.getImageWritersByFormatName("jpeg")
+				.next();
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		ImageOutputStream ios = ImageIO.createImageOutputStream(bytes);
+		try {
+			writer.setOutput(ios);
+			ImageWriteParam param = writer.getDefaultWriteParam();
+			param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+			param.setCompressionQuality(((this.quality == 0) ? 95
+					: this.quality) / 100f);
+			writer.write(null, new IIOImage(img, null, null), param);
+		} finally {
+			writer.dispose();
+			ios.close();
+		}
+		return bytes.toByteArray();
+	}
+
+	private static boolean isJpg(File frame) {
+		String name = frame.getName().toLowerCase();
+		return name.endsWith(".jpg") || name.endsWith(".jpeg");
+	}
+
+	private void write(ByteBuffer b) throws IOException {
+		while (b.hasRemaining()) {
+			this.channel.write(b);
+		}
+	}
+
+	private static ByteBuffer le(int size) {
+		return ByteBuffer.allocate(size).order(ByteOrder.LITTLE_ENDIAN);
+	}
+
+	private static byte[] fourcc(String s) {
+		return new byte[] { (byte) s.charAt(0), (byte) s.charAt(1),
+				(byte) s.charAt(2), (byte) s.charAt(3) };
+	}
+
+}
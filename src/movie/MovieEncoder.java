@@ -0,0 +1,23 @@
+package movie;
+
+import java.io.File;
+import java.io.IOException;
+
+public interface MovieEncoder {
+
+	/**
+	 * MovieEncoder : writes a movie from frames given one by one in movie
+	 * order (JPG files rendered by darktable-cli)
+	 */
+
+	public void addFrame(File frame) throws IOException;
+
+	// end of the movie: write it completely
+	public void close() throws IOException;
+
+	public String getOutput();
+
+	// frames given are read again on close (to keep until then)
+	public boolean isReadingOnClose();
+
+}
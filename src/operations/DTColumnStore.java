@@ -0,0 +1,62 @@
+package operations;
+
+import java.util.LinkedHashMap;
+
+public class DTColumnStore {
+
+	/**
+	 * DTColumnStore : parameter values of a sequence of frames stored by
+	 * column, one double[] per operation/parameter spanning all frames.
+	 * Value i of frame f is column[f * length + i]; the DTValue of each frame
+	 * is a view on its slice.
+	 */
+
+	private int nFrames;
+	private LinkedHashMap<String, double[]> columns;
+
+	public DTColumnStore(int nFrames) {
+		super();
+		this.nFrames = nFrames;
+		this.columns = new LinkedHashMap<String, double[]>();
+	}
+
+	public int size() {
+		return this.nFrames;
+	}
+
+	private static String key(String operation, String parameter) {
+		return operation + "/" + parameter;
+	}
+
+	public double[] getColumn(String operation, String parameter) {
+		// null if the operation/parameter is not stored
+		return this.columns.get(key(operation, parameter));
+	}
+
+	public double[] getColumn(String operation, String parameter, int length) {
+		// get the column, create it if needed
+		double[] column = this.getColumn(operation, parameter);
+		if (column == null) {
+			column = new double[this.nFrames * length];
+			this.columns.put(key(operation, parameter), column);
+		}
+		return column;
+	}
+
+	public void bind(int frame, DTConfiguration dtc) {
+		// move all values of dtc to the slot "frame" of the columns
+		for (String operation : dtc.keySet()) {
+			DTOperation dtOp = dtc.get(operation);
+			for (String parameter : dtOp.keySet()) {
+				DTValue dtv = (DTValue) dtOp.get(parameter).get("value");
+				if (dtv == null) {
+					continue; // parameter not read
+				}
+				double[] column = this.getColumn(operation, parameter,
+						dtv.size());
+				dtv.bind(column, frame * dtv.size());
+			}
+		}
+	}
+
+}
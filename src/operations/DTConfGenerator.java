@@ -0,0 +1,134 @@
+package operations;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+import org.apache.commons.math3.analysis.interpolation.LinearInterpolator;
+import org.apache.commons.math3.analysis.interpolation.SplineInterpolator;
+import org.apache.commons.math3.analysis.polynomials.PolynomialSplineFunction;
+
+public class DTConfGenerator implements Iterable<DTConfiguration> {
+
+	/**
+	 * DTConfGenerator : interpolated frames of a DTConfList generated one by
+	 * one (same values as DTConfList.interpAllParam). Only the keyframes
+	 * and one interpolation function per operation/parameter/value are kept,
+	 * each frame is built on demand and could be dropped once written.
+	 */
+
+	private DTConfiguration first;
+	private int firstIndex;
+	private int lastIndex;
+	private ArrayList<ValueInterp> values;
+
+	private static class ValueInterp {
+		// interpolation of one value of one operation/parameter
+		String operation;
+		String parameter;
+		int paramIndex;
+		PolynomialSplineFunction psf; // null: zero order hold on x/y
+		double[] x;
+		double[] y;
+
+		double value(int index) {
+			if (this.psf != null) {
+				return this.psf.value(index);
+			}
+			// value of the last keyframe lower or equal to index
+			int j = 0;
+			while (j < this.x.length - 1 && index >= this.x[j + 1]) {
+				j += 1;
+			}
+			return this.y[j];
+		}
+	}
+
+	DTConfGenerator(DTConfList keys, boolean isSpline) {
+		super();
+		this.first = keys.first();
+		this.firstIndex = keys.first().index;
+		this.lastIndex = keys.last().index;
+		this.values = new ArrayList<ValueInterp>();
+
+		// one interpolation function per operation/parameter/value (same
+		// choice as interpAllParam)
+		double[] keyFileIdx = keys.getIndexDoubleArray();
+		for (String operation : this.first.keySet()) {
+			DTOperation dtOp = this.first.get(operation);
+			for (String parameter : dtOp.keySet()) {
+				DTValue dtv = (DTValue) dtOp.get(parameter).get("value");
+				if (dtv == null) {
+					continue; // parameter not read
+				}
+				boolean isInterpolatable = dtOp.isInterpolatable
+						&& dtOp.get(parameter).isInterpolatable;
+				for (Integer paramIndex : dtv.keySet()) {
+					ValueInterp vi = new ValueInterp();
+					vi.operation = operation;
+					vi.parameter = parameter;
+					vi.paramIndex = paramIndex;
+					double[] keyValues = keys.getOneParamDoubleArray(
+							operation, parameter, paramIndex);
+					if (!isInterpolatable) {
+						vi.x = keyFileIdx;
+						vi.y = keyValues;
+					} else if (isSpline) {
+						vi.psf = new SplineInterpolator().interpolate(
+								keyFileIdx, keyValues);
+					} else {
+						vi.psf = new LinearInterpolator().interpolate(
+								keyFileIdx, keyValues);
+					}
+					this.values.add(vi);
+				}
+			}
+		}
+	}
+
+	public int size() {
+		return this.lastIndex - this.firstIndex + 1;
+	}
+
+	public DTConfiguration get(int index) {
+		/** interpolated configuration of frame index **/
+		DTConfiguration dtc = new DTConfiguration(this.first);
+		dtc.index = index;
+		dtc.srcFile = DTConfList.frameSrcFile(dtc.srcFile, index);
+		if (index != this.firstIndex) {
+			dtc.rating = 0; // first frame keeps the keyframe rating
+		}
+		for (ValueInterp vi : this.values) {
+			dtc.setOpParValue(vi.operation, vi.parameter, vi.paramIndex,
+					vi.value(index));
+		}
+		return dtc;
+	}
+
+	@Override
+	public Iterator<DTConfiguration> iterator() {
+		// all frames in increasing index order
+		return new Iterator<DTConfiguration>() {
+			private int next = firstIndex;
+
+			@Override
+			public boolean hasNext() {
+				return this.next <= lastIndex;
+			}
+
+			@Override
+			public DTConfiguration next() {
+				if (!this.hasNext()) {
+					throw new NoSuchElementException();
+				}
+				return get(this.next++);
+			}
+
+			@Override
+			public void remove() {
+				throw new UnsupportedOperationException();
+			}
+		};
+	}
+
+}
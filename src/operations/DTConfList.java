@@ -3,18 +3,31 @@ package operations;
 import java.io.File;
 import java.util.ArrayList;
 import java.util.Iterator;
+import java.util.List;
 import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.apache.commons.math3.analysis.interpolation.LinearInterpolator;
 import org.apache.commons.math3.analysis.interpolation.SplineInterpolator;
+import org.apache.commons.math3.analysis.polynomials.PolynomialFunction;
 import org.apache.commons.math3.analysis.polynomials.PolynomialSplineFunction;
 
+import utils.ProgressListener;
+
 public class DTConfList extends TreeSet<DTConfiguration> {
 	/**
 	 * DTConfList : TreeSet of DTConfiguration
 	 */
 	private static final long serialVersionUID = -3341022703073091969L;
 
+	// parameter values of interpolated frames (null for keyframes)
+	public DTColumnStore store;
+
 	public DTConfList() {
 		super();
 	}
@@ -23,7 +36,7 @@ public class DTConfList extends TreeSet<DTConfiguration> {
 		// add XMP only if rating is not null
 		DTConfiguration dtc = new DTConfiguration(xmpFile);
 		if (dtc.rating>0) {
-			this.add(new DTConfiguration(xmpFile));
+			this.add(dtc);
 		}
 	}
 
@@ -67,8 +80,14 @@ public class DTConfList extends TreeSet<DTConfiguration> {
 	public double[] getOneParamDoubleArray(String operation, String parameter,
 			Integer index) {
 		// return one operation/parameter all values in a matrix of double[]
-		return this.todoubleArray(this.getOneParamList(operation, parameter,
-				index));
+		double[] parArray = new double[this.size()];
+		int i = 0;
+		Iterator<DTConfiguration> it = this.iterator();
+		while (it.hasNext()) {
+			parArray[i] = it.next().getOpParValue(operation, parameter, index);
+			i += 1;
+		}
+		return parArray;
 	}
 
 	public double[][] todoubleMat(ArrayList<Number[]> numList) {
@@ -204,6 +223,35 @@ public class DTConfList extends TreeSet<DTConfiguration> {
 				fileIndex);
 	}
 
+	public double[] sweepInterp(PolynomialSplineFunction psf, double[] xi) {
+		// evaluate psf on increasing xi in one sweep on its knots
+		double[] knots = psf.getKnots();
+		PolynomialFunction[] polynomials = psf.getPolynomials();
+		double[] yi = new double[xi.length];
+		int j = 0;
+		for (int i = 0; i < xi.length; i++) {
+			while (j < polynomials.length - 1 && xi[i] >= knots[j + 1]) {
+				j += 1;
+			}
+			yi[i] = polynomials[j].value(xi[i] - knots[j]);
+		}
+		return yi;
+	}
+
+	public double[] zohInterp(double[] x, double[] y, double[] xi) {
+		// zero order hold interpolation of (x,y) on increasing xi in one
+		// sweep: value of the last x lower or equal to xi
+		double[] yi = new double[xi.length];
+		int j = 0;
+		for (int i = 0; i < xi.length; i++) {
+			while (j < x.length - 1 && xi[i] >= x[j + 1]) {
+				j += 1;
+			}
+			yi[i] = y[j];
+		}
+		return yi;
+	}
+
 	public DTConfList interpAllParam(String outFolder, String method) {
 		// interpolation method available: linear | spline
 
@@ -216,22 +264,32 @@ public class DTConfList extends TreeSet<DTConfiguration> {
 			DTConfiguration dtc = new DTConfiguration(this.first());
 			Integer confIdx = (int) interpFileIdx[i];
 			dtc.index = confIdx;
-			// format: prefix_0000_suffix.xmp
-			String s = confIdx.toString();
-			while (s.length() < 4) {
-				// complete with 0 to have 4 digits
-				s = "0" + s;
-			}
-			dtc.srcFile = dtc.srcFile.replaceAll("(.*\\D)(\\d+)(\\D.*)", "$1"
-					+ s + "$3");
+			dtc.srcFile = frameSrcFile(dtc.srcFile, confIdx);
 			dtc.rating = 0;
 			dtclInterp.add(dtc);
 		}
+		// interpolated frames in increasing index order (same as
+		// interpFileIdx)
+		DTConfiguration[] interpFrames = dtclInterp
+				.toArray(new DTConfiguration[dtclInterp.size()]);
+
+		// values of all frames are stored by column: each frame parameter is
+		// a view on its slice
+		dtclInterp.store = new DTColumnStore(interpFrames.length);
+		for (int i = 0; i < interpFrames.length; i++) {
+			dtclInterp.store.bind(i, interpFrames[i]);
+		}
+
+		// interpolation method is checked once for all parameters
+		boolean isSpline = this.isSpline(method);
 
 		// for each operation : interpolate parameters
 		// scan all operations of first element TreeSet (DTConfiguration)
 		// suppose that all files in TreeSet have the same DTConfiguration
 		// (operation/parameters)
+		// one interpolation function per operation/parameter/value, evaluated
+		// on all frames in a single sweep
+		double[] keyFileIdx = this.getIndexDoubleArray();
 		Iterator<String> itOp = this.first().keySet().iterator();
 		while (itOp.hasNext()) {
 			// loop on all DTOperation in LinkedHashMap
@@ -243,44 +301,34 @@ public class DTConfList extends TreeSet<DTConfiguration> {
 				String parameter = itPar.next();
 				DTValue dtv = (DTValue) this.first().get(operation)
 						.get(parameter).get("value");
+				boolean isInterpolatable = (this.first().get(operation).isInterpolatable && this
+						.first().get(operation).get(parameter).isInterpolatable);
+				double[] column = dtclInterp.store.getColumn(operation,
+						parameter);
+				int length = dtv.size();
 				Iterator<Integer> itVal = dtv.keySet().iterator();
-				// TODO: correct interpolation... not working now ! :-(
 				while (itVal.hasNext()) {
 					// loop on all DTValue in LinkedHashMap
 					Integer paramIndex = itVal.next();
-					for (int i = 0; i < interpFileIdx.length; i++) {
-						// lowest level reached: interpolate values
-						Integer confIdx = (int) interpFileIdx[i];
-						double vi = 0;
-						boolean isInterpolatable = (this.first().get(operation).isInterpolatable && this
-								.first().get(operation).get(parameter).isInterpolatable);
-						if (isInterpolatable) {
-							if (method.equalsIgnoreCase("linear")) {
-								vi = this.interpLinearOneOpParam(operation,
-										parameter, paramIndex, confIdx);
-							} else if (method.equalsIgnoreCase("spline")) {
-								if (this.size() > 2) {
-									vi = this.interpSplineOneOpParam(operation,
-											parameter, paramIndex, confIdx);
-								} else {
-									System.err
-											.println("Only 2 XMP keyframes:\nlinear interpolation is used instead of spline");
-									vi = this.interpLinearOneOpParam(operation,
-											parameter, paramIndex, confIdx);
-								}
-							} else {
-								System.err
-										.println("Method "
-												+ method
-												+ " not supported. Available: linear | spline");
-							}
-						} else {
-							// zero order hold
-							vi = this.interpZohOneOpParam(operation, parameter,
-									paramIndex, confIdx);
-						}
-						dtclInterp.get(confIdx).setOpParValue(operation,
-								parameter, paramIndex, vi);
+					double[] keyValues = this.getOneParamDoubleArray(
+							operation, parameter, paramIndex);
+					double[] vi;
+					if (!isInterpolatable) {
+						// zero order hold
+						vi = this.zohInterp(keyFileIdx, keyValues,
+								interpFileIdx);
+					} else if (isSpline) {
+						vi = this.sweepInterp(new SplineInterpolator()
+								.interpolate(keyFileIdx, keyValues),
+								interpFileIdx);
+					} else {
+						vi = this.sweepInterp(new LinearInterpolator()
+								.interpolate(keyFileIdx, keyValues),
+								interpFileIdx);
+					}
+					// lowest level reached: write interpolated values
+					for (int i = 0; i < interpFrames.length; i++) {
+						column[i * length + paramIndex] = vi[i];
 					}
 				}
 			}
@@ -290,6 +338,39 @@ public class DTConfList extends TreeSet<DTConfiguration> {
 		return dtclInterp;
 	}
 
+	public DTConfGenerator interpGenerator(String method) {
+		// same interpolation as interpAllParam, frames generated on demand
+		return new DTConfGenerator(this, this.isSpline(method));
+	}
+
+	boolean isSpline(String method) {
+		// interpolation method available: linear | spline
+		boolean isSpline = false;
+		if (method.equalsIgnoreCase("spline")) {
+			if (this.size() > 2) {
+				isSpline = true;
+			} else {
+				System.err
+						.println("Only 2 XMP keyframes:\nlinear interpolation is used instead of spline");
+			}
+		} else if (!method.equalsIgnoreCase("linear")) {
+			System.err.println("Method " + method
+					+ " not supported. Available: linear | spline"
+					+ "\nlinear interpolation is used");
+		}
+		return isSpline;
+	}
+
+	static String frameSrcFile(String srcFile, Integer index) {
+		// source file of frame index, format: prefix_0000_suffix.xmp
+		String s = index.toString();
+		while (s.length() < 4) {
+			// complete with 0 to have 4 digits
+			s = "0" + s;
+		}
+		return srcFile.replaceAll("(.*\\D)(\\d+)(\\D.*)", "$1" + s + "$3");
+	}
+
 	public DTConfList deflick(String outFolder,
 			PolynomialSplineFunction calibLumDeltaEV) {
 		DTConfList dtclDeflick = new DTConfList();
@@ -382,25 +463,75 @@ public class DTConfList extends TreeSet<DTConfiguration> {
 	}
 
 	public DTConfiguration get(Integer index) {
-		// return configuration corresponding to index
-		Iterator<DTConfiguration> itIndex = this.iterator();
-		while (itIndex.hasNext()) {
-			DTConfiguration dtc = itIndex.next();
-			Integer idx = dtc.index;
-			if (idx.equals(index)) {
-				return dtc;
-			}
+		// return configuration corresponding to index (null if not found)
+		// TreeSet is sorted by index: O(log n) search instead of a scan
+		DTConfiguration dtc = this.ceiling(new DTConfiguration(index));
+		if (dtc != null && dtc.index.equals(index)) {
+			return dtc;
 		}
 		return null;
 
 	}
 
 	public void addXmpFromFolder(String folderPath) {
-		ArrayList<String> xmpFiles = new ArrayList<String>();
-		xmpFiles = this.getXmpFileInFolder(folderPath);
-		Iterator<String> it = xmpFiles.iterator();
-		while (it.hasNext()) {
-			this.addXmp(folderPath + "/" + it.next());
+		this.addXmpFromFolder(folderPath, null);
+	}
+
+	/**
+	 * read all XMP files of a folder in parallel: each file is parsed once
+	 * and kept only if its rating is not null
+	 * 
+	 * @param folderPath
+	 * @param listener
+	 *            : notified after each file read (could be null)
+	 */
+	public void addXmpFromFolder(final String folderPath,
+			final ProgressListener listener) {
+		final ArrayList<String> xmpFiles = this.getXmpFileInFolder(folderPath);
+		int nThreads = Math.min(Runtime.getRuntime().availableProcessors(),
+				Math.max(1, xmpFiles.size()));
+		ExecutorService pool = Executors.newFixedThreadPool(nThreads);
+		final AtomicInteger nRead = new AtomicInteger();
+		try {
+			List<Future<DTConfiguration>> futures = new ArrayList<Future<DTConfiguration>>();
+			for (final String xmpFile : xmpFiles) {
+				futures.add(pool.submit(new Callable<DTConfiguration>() {
+					@Override
+					public DTConfiguration call() {
+						DTConfiguration dtc = new DTConfiguration(folderPath
+								+ "/" + xmpFile);
+						if (listener != null) {
+							listener.progress(nRead.incrementAndGet(),
+									xmpFiles.size());
+						}
+						return (dtc.rating > 0) ? dtc : null;
+					}
+				}));
+			}
+
+			// merge in the sorted set (on this thread only)
+			for (Future<DTConfiguration> future : futures) {
+				DTConfiguration dtc;
+				try {
+					dtc = future.get();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new Error("XMP reading interrupted", e);
+				} catch (ExecutionException e) {
+					// same failure as a sequential read
+					if (e.getCause() instanceof Error) {
+						throw (Error) e.getCause();
+					} else if (e.getCause() instanceof RuntimeException) {
+						throw (RuntimeException) e.getCause();
+					}
+					throw new Error(e.getCause());
+				}
+				if (dtc != null) {
+					this.add(dtc);
+				}
+			}
+		} finally {
+			pool.shutdownNow();
 		}
 	}
 
@@ -1,11 +1,15 @@
 package operations;
 
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.Set;
 
 import operations.iop.Exposure;
 
+import javax.xml.bind.DatatypeConverter;
+
 import org.apache.commons.math3.analysis.polynomials.PolynomialSplineFunction;
 
 import xmp.XmpDTConf;
@@ -25,6 +29,7 @@ public class DTConfiguration extends HashMap<String, DTOperation> implements
 	public XmpDTConf xmpConf;
 	public Double luminance; // initial luminance after first interpolation
 	public Double luminanceDeflick; // luminance after deflickering
+	public Double evDeflick; // exposure correction of deflickering (EV)
 
 	public DTConfiguration(String xmpPath) {
 		super();
@@ -48,11 +53,22 @@ public class DTConfiguration extends HashMap<String, DTOperation> implements
 	}
 
 	public DTConfiguration(DTConfiguration dtc) {
+		// copy of dtc: operations are copied (params are not decoded again)
+		// and the copy writes its own XMP patch set on the same template
 		super();
 		srcFile = dtc.srcFile;
 		index = dtc.index;
-		xmpConf = dtc.xmpConf;
-		this.readAllOperations(this.xmpConf);
+		rating = dtc.rating;
+		xmpConf = new XmpDTConf(dtc.xmpConf);
+		for (String opkey : dtc.keySet()) {
+			this.put(opkey, dtc.get(opkey).copy());
+		}
+	}
+
+	DTConfiguration(Integer index) {
+		// empty configuration, only used as key to search a DTConfList
+		super();
+		this.index = index;
 	}
 
 	public void readAllOperations(XmpDTConf xmpConf) {
@@ -76,7 +92,11 @@ public class DTConfiguration extends HashMap<String, DTOperation> implements
 	}
 
 	public void updateXmpConf(String outFolder) {
-		/** Replace operations of history list **/
+		this.updateXmpConf(outFolder, this.srcFile);
+	}
+
+	public void updateXmpConf(String outFolder, String xmpName) {
+		/** Replace operations of history list, write outFolder/xmpName.xmp **/
 		for (int i = 0; i < this.xmpConf.histOp.size(); i++) {
 			// for each operation, write parameter value from DTOperation
 			String opkey = xmpConf.histOp.get(i) + xmpConf.multName.get(i);
@@ -88,17 +108,51 @@ public class DTConfiguration extends HashMap<String, DTOperation> implements
 		this.xmpConf.srcFile = this.srcFile; // update xmpConf srcFile
 		this.xmpConf.rating = this.rating; // update xmpConf rating
 		this.xmpConf.ratingStr = ""+this.rating; // update xmpConf ratingStr
-		this.xmpConf.write(outFolder); // update xmpConf in coherency & write
+		this.xmpConf.write(outFolder, xmpName); // update xmpConf in coherency & write
 										// XMP file
 	}
 
+	public String getHistoryHash() {
+		/** Hash of history_params/history_enabled as written in XMP **/
+		return this.getHistoryHash(null, null);
+	}
+
+	public String getHistoryHash(String ignoredOp, String ignoredParam) {
+		/**
+		 * Same hash, without the value of ignoredOp/ignoredParam (e.g.
+		 * "exposure "/"exposure"): equal hashes mean that only this value
+		 * changed
+		 **/
+		MessageDigest md;
+		try {
+			md = MessageDigest.getInstance("MD5");
+		} catch (NoSuchAlgorithmException e) {
+			throw new AssertionError(e);
+		}
+		for (int i = 0; i < this.xmpConf.histOp.size(); i++) {
+			String opkey = xmpConf.histOp.get(i) + xmpConf.multName.get(i);
+			DTOperation dtOp = this.get(opkey);
+			if (opkey.equals(ignoredOp) && dtOp.containsKey(ignoredParam)) {
+				dtOp = dtOp.copy();
+				DTValue ignored = (DTValue) dtOp.get(ignoredParam).get(
+						"value");
+				for (int j = 0; j < ignored.size(); j++) {
+					ignored.setDouble(j, 0);
+				}
+			}
+			md.update((opkey + "=" + DTOperation.writeEnable(dtOp) + ":"
+					+ DTOperation.writeParams(dtOp) + ";").getBytes());
+		}
+		return DatatypeConverter.printHexBinary(md.digest());
+	}
+
 	public double getOpParValue(String operation, String parameter,
 			Integer index) {
 		// return operation / parameter / value[idx]
 		try {
 			DTValue v = (DTValue) this.get(operation).get(parameter)
 					.get("value");
-			return (Double) v.get(index);
+			return v.getDouble(index);
 		} catch (Exception nulException) {
 			// System.out.println("null exception: "+operation+" "+parameter);
 			System.err.println("getOpParValue failed on " + this.srcFile
@@ -112,8 +166,7 @@ public class DTConfiguration extends HashMap<String, DTOperation> implements
 			Integer index, double value) {
 		// set operation / parameter / value[idx]
 		DTValue v = (DTValue) this.get(operation).get(parameter).get("value");
-		v.put(index, value);
-		this.get(operation).get(parameter).put("value", v);
+		v.setDouble(index, value);
 	}
 	
 	public void setOpEnable(String operation, String multiName, boolean isEnabled) {
@@ -150,11 +203,11 @@ public class DTConfiguration extends HashMap<String, DTOperation> implements
 		// compute target EV for deflick
 		// double evDeflick = computeEVtarget(EV, this.luminance,
 		// this.luminanceDeflick);
-		double evDeflick = calibLumDeltaEV.value((this.luminanceDeflick
+		this.evDeflick = calibLumDeltaEV.value((this.luminanceDeflick
 				/ this.luminance - 1.0d));
 
 		// update XMP configuration
-		setOpParValue(expoName, "exposure", 0, EV + evDeflick);
+		setOpParValue(expoName, "exposure", 0, EV + this.evDeflick);
 		setOpEnable(expoName, true);
 		this.updateXmpConf(outFolder);
 	}
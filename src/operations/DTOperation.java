@@ -6,13 +6,17 @@ import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.lang.reflect.Constructor;
 import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 import java.util.ArrayList;
 import java.util.Enumeration;
 import java.util.LinkedHashMap;
 import java.util.List;
-import java.util.Set;
+import java.util.Map;
 import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.zip.DeflaterOutputStream;
 import java.util.zip.InflaterInputStream;
 import java.util.zip.ZipEntry;
@@ -82,6 +86,12 @@ public abstract class DTOperation extends LinkedHashMap<String, DTParameter> {
 	public boolean isInterpolatable;
 
 	/** interpolation is possible for this operation **/
+	public String rawParams;
+
+	/**
+	 * history_params as read, written back as is if no parameter is defined
+	 * for this version
+	 **/
 
 	public DTOperation(String name, boolean isInterpolatable) {
 		super();
@@ -117,65 +127,58 @@ public abstract class DTOperation extends LinkedHashMap<String, DTParameter> {
 	public static DTOperation readOperation(String op, String ver, String ena,
 			String par, String blendver, String blendpar, String multiprio,
 			String multiname) {
-		for (Class<?> classe : availableOperations) {
-			// scan all classes defined in operations/iop
-			try {
-
-				DTOperation dtOp = (DTOperation) classe.newInstance();
-				if (dtOp.name.equals(op)) {
-					// current operation name (op) matches to one class
-					// definition
-					// => we read the parameters of current operation
-					if (!ena.equals("1")) {
-						// iop is not active, but we still scan parameters
-						dtOp.enabled = false;
-					} else {
-						dtOp.enabled = true;
-					}
-
-					// update parameters definition according to DT_MODULE
-					// version
-					dtOp.version = ver;
-					dtOp.addParam();
-					
-					// par: could be compressed since darktable 1.4
-					// decompress to old hexa format
-					// TODO: change parameter type to byte[]
-					Boolean isCompressed = par.startsWith("gz");
-					if(isCompressed){
-						par = par.substring(4); // remove gz##
-						byte[] bufferBase64 = DatatypeConverter.parseBase64Binary(par);
-						byte[] decomp = decompress(bufferBase64);
-						// uncompressed hexadecimal parameter (as in dtVer<1.4)
-						par=DatatypeConverter.printHexBinary(decomp);	
-					}
-
-					// initialise object corresponding to current operation
-					// parameters (defined in dt/operation/iop/"Operation".java)
-					Set<String> opParamNames = dtOp.keySet();
-					for (String param : opParamNames) {
-						// each DTParameter reads the first words of the the
-						// string par
-						// and returns remaining string (for next parameters)
-						// System.out.println(op+" "+param);
-						par = dtOp.get(param).read(par);
-					}
-					dtOp.blendParams = blendpar;
-					dtOp.blendVersion = blendver;
-					dtOp.multiPriority = multiprio;
-					dtOp.multiName = multiname;
-					return dtOp;
-				}
+		DTOperation dtOp = newOperation(op);
+		if (dtOp == null) {
+			System.err.println("No class found to read " + op);
+			return null;
+		}
 
-			} catch (InstantiationException e) {
-				e.printStackTrace();
-			} catch (IllegalAccessException e) {
-				e.printStackTrace();
-			}
+		// current operation name (op) matches to one class definition
+		// => we read the parameters of current operation
+		if (!ena.equals("1")) {
+			// iop is not active, but we still scan parameters
+			dtOp.enabled = false;
+		} else {
+			dtOp.enabled = true;
+		}
 
+		// update parameters definition according to DT_MODULE
+		// version
+		dtOp.version = ver;
+		dtOp.addParam();
+
+		// read parameters from history_params
+		readParams(dtOp, par);
+		dtOp.blendParams = blendpar;
+		dtOp.blendVersion = blendver;
+		dtOp.multiPriority = multiprio;
+		dtOp.multiName = multiname;
+		return dtOp;
+	}
+
+	/**
+	 * copy returns a new operation with the same properties and parameters.
+	 * Parameter values are not decoded again from history_params: they share
+	 * the values of this operation until one of them is written (see DTValue)
+	 */
+	public DTOperation copy() {
+		DTOperation dtOp = newOperation(this.name);
+		if (dtOp == null) {
+			throw new AssertionError("No class found to copy " + this.name);
+		}
+		dtOp.version = this.version;
+		dtOp.enabled = this.enabled;
+		dtOp.blendVersion = this.blendVersion;
+		dtOp.blendParams = this.blendParams;
+		dtOp.multiPriority = this.multiPriority;
+		dtOp.multiName = this.multiName;
+		dtOp.isInterpolatable = this.isInterpolatable;
+		dtOp.rawParams = this.rawParams;
+		dtOp.clear();
+		for (Map.Entry<String, DTParameter> entry : this.entrySet()) {
+			dtOp.put(entry.getKey(), new DTParameter(entry.getValue()));
 		}
-		System.err.println("No class found to read " + op);
-		return null;
+		return dtOp;
 	}
 
 	public abstract void addParam();
@@ -196,8 +199,62 @@ public abstract class DTOperation extends LinkedHashMap<String, DTParameter> {
 	// static definition
 	// TODO : update the list each time you add a class in operations/iop and
 	// then CTRL+SHIFT+O to update imports in eclipse
+	// (classes defined elsewhere: see registerOperation)
 	public static Class<? extends DTOperation>[] availableOperations = (Class<? extends DTOperation>[]) getClasses();
 
+	// registry of operations by dt_iop name, filled once with
+	// availableOperations: a new operation is a single lookup
+	private static Map<String, DTOperationFactory> registry = new ConcurrentHashMap<String, DTOperationFactory>();
+	static {
+		for (Class<? extends DTOperation> classe : availableOperations) {
+			registerOperation(classe);
+		}
+	}
+
+	/**
+	 * registerOperation adds (or replaces) the factory used to create the
+	 * operation "name"
+	 */
+	public static void registerOperation(String name,
+			DTOperationFactory factory) {
+		registry.put(name, factory);
+	}
+
+	/**
+	 * registerOperation adds a DTOperation class (with a public constructor
+	 * without argument) under the name it defines
+	 */
+	public static void registerOperation(Class<? extends DTOperation> classe) {
+		final Constructor<? extends DTOperation> constructor;
+		DTOperation dtOp;
+		try {
+			constructor = classe.getConstructor();
+			dtOp = constructor.newInstance();
+		} catch (Exception e) {
+			e.printStackTrace();
+			return;
+		}
+		registerOperation(dtOp.name, new DTOperationFactory() {
+			@Override
+			public DTOperation newOperation() {
+				try {
+					return constructor.newInstance();
+				} catch (Exception e) {
+					throw new AssertionError(e);
+				}
+			}
+		});
+	}
+
+	/**
+	 * newOperation returns a new (empty) operation "name", null if no class
+	 * is registered for this name
+	 */
+	public static DTOperation newOperation(String name) {
+		DTOperationFactory factory = registry.get(name);
+		return (factory == null) ? null : factory.newOperation();
+	}
+
 	public static Class<?>[] getClasses() {
 		// shell command to generate/update the list:
 		// for fic in `ls src/operations/iop` ; do echo ${fic%%.*}.class,; done
@@ -324,24 +381,71 @@ public abstract class DTOperation extends LinkedHashMap<String, DTParameter> {
 		return classes;
 	}
 
+	public static void readParams(DTOperation dtOp, String par) {
+		// par: could be compressed since darktable 1.4 ("gz##" + base64 of
+		// zlib stream), else hexadecimal
+		dtOp.rawParams = par;
+		if (dtOp.isEmpty()) {
+			// unknown layout (e.g. newer module version): kept as read
+			return;
+		}
+		byte[] parBytes;
+		if (par.startsWith("gz")) {
+			parBytes = decompress(DatatypeConverter.parseBase64Binary(par
+					.substring(4)));
+		} else {
+			parBytes = DatatypeConverter.parseHexBinary(par);
+		}
+
+		// initialise object corresponding to current operation
+		// parameters (defined in dt/operation/iop/"Operation".java)
+		// each DTParameter reads its words (little endian) and moves the
+		// buffer to the next parameter
+		ByteBuffer buf = ByteBuffer.wrap(parBytes).order(
+				ByteOrder.LITTLE_ENDIAN);
+		for (DTParameter param : dtOp.values()) {
+			param.read(buf);
+		}
+	}
+
 	public static String writeParams(DTOperation dtOp) {
-		String params = "";
-		Set<String> opParamNames = dtOp.keySet();
-		for (String param : opParamNames) {
-			params = params + dtOp.get(param).write();
+		if (dtOp.isEmpty() && dtOp.rawParams != null) {
+			return dtOp.rawParams;
 		}
-		// TODO: compress directly byte[] instead of hexadecimal param
+		int size = 0;
+		for (DTParameter param : dtOp.values()) {
+			size += param.getByteSize();
+		}
+		ByteBuffer buf = ByteBuffer.allocate(size).order(
+				ByteOrder.LITTLE_ENDIAN);
+		for (DTParameter param : dtOp.values()) {
+			param.write(buf);
+		}
+		byte[] paramsBytes = buf.array();
+
+		// compressed as darktable does if hexadecimal string is too long
 		int COMPRESS_THRESHOLD = 100;
-		if(params.length()>COMPRESS_THRESHOLD){
-			byte[] paramsBytes = DatatypeConverter.parseHexBinary(params);
+		if (2 * paramsBytes.length > COMPRESS_THRESHOLD) {
 			byte[] paramsBytesCompressed = compress(paramsBytes);
 			String paramsCompressed = DatatypeConverter.printBase64Binary(paramsBytesCompressed);
 			int compFactor = Math.min(99, paramsBytes.length/paramsBytesCompressed.length + 1);
-			params = "gz"+String.format("%02d", compFactor)+paramsCompressed;
+			return "gz"+String.format("%02d", compFactor)+paramsCompressed;
 		}
-		return params;
+		return printHex(paramsBytes);
 	}
-	
+
+	private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+	public static String printHex(byte[] bytes) {
+		// lower case hexadecimal string, as written by darktable
+		char[] hex = new char[2 * bytes.length];
+		for (int i = 0; i < bytes.length; i++) {
+			hex[2 * i] = HEX_DIGITS[(bytes[i] >> 4) & 0xf];
+			hex[2 * i + 1] = HEX_DIGITS[bytes[i] & 0xf];
+		}
+		return new String(hex);
+	}
+
 	public static String writeEnable(DTOperation dtOp) {
 		String opEna = "";
 		if (dtOp.enabled) {
@@ -0,0 +1,11 @@
+package operations;
+
+public interface DTOperationFactory {
+
+	/**
+	 * DTOperationFactory : creates a new (empty) DTOperation of one darktable
+	 * iop. Factories are registered by iop name in DTOperation.
+	 */
+	public DTOperation newOperation();
+
+}
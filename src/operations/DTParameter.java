@@ -1,5 +1,6 @@
 package operations;
 
+import java.nio.ByteBuffer;
 import java.util.LinkedHashMap;
 
 public class DTParameter extends LinkedHashMap<String, Object> {
@@ -19,7 +20,7 @@ public class DTParameter extends LinkedHashMap<String, Object> {
 		this.put("type", type);
 		this.put("value", value);
 		this.length = length;
-		this.wordSize = 8;
+		this.wordSize = 4; // bytes
 		this.isInterpolatable = isInterpolatable;
 	}
 
@@ -27,81 +28,65 @@ public class DTParameter extends LinkedHashMap<String, Object> {
 		this(type, length, value, true);
 	}
 
-	/**
-	 * @param : String in XMP file describing parameterisation
-	 */
-	public String read(String param) {
-		/*
-		 * Retrieve specifed number of Bytes code in hexa : 2 char = 1 Byte
-		 */
-		String paramString = param.substring(0, this.wordSize * this.length);
-		// get value, specified in OPXxx.java types
-		this.getValue(this.get("type"), paramString);
-		// update param String, removing part already read
-		return param.substring(this.wordSize * this.length, param.length());
+	public DTParameter(DTParameter param) {
+		// copy of param, its value is shared until written (see DTValue)
+		super(param);
+		DTValue value = (DTValue) param.get("value");
+		if (value != null) {
+			this.put("value", new DTValue(value));
+		}
+		this.length = param.length;
+		this.wordSize = param.wordSize;
+		this.isInterpolatable = param.isInterpolatable;
 	}
 
-	public void getValue(Object object, String s) {
+	public int getByteSize() {
+		// size of the parameter in history_params
+		return this.wordSize * this.length;
+	}
 
-		DTValue value = new DTValue();
-		String remain = s;
+	/**
+	 * @param buf
+	 *            : history_params bytes (little endian), positioned at this
+	 *            parameter. Position is moved to the next parameter.
+	 */
+	public void read(ByteBuffer buf) {
+		Object type = this.get("type");
+		DTValue value = new DTValue(this.length);
 		for (int i = 0; i < this.length; i++) {
-			// inverts order of the 8 char word, 2 by 2 char : DDCCBBAA =>
-			// AABBCCDD (little/big endian ?)
-			s = remain.substring(6, 8) + remain.substring(4, 6)
-					+ remain.substring(2, 4) + remain.substring(0, 2);
-			remain = remain.substring(8, remain.length());
-			if (object.equals("float") || object.equals("double")) {
-				// Interpret hexa value as Float
-				Integer intValue = Long.valueOf(s, 16).intValue();
-				value.put(i, (double) Float.intBitsToFloat(intValue));
-			} else if (object.equals("int") || object.equals("boolean")) {
-				// Interpret hexa value as Integer
-				Integer intValue = Integer.valueOf(s, 16).intValue();
-				value.put(i, (double) intValue);
-			} else if (object.equals("string")) {
-				// interpret as string
-				Integer intValue=0;
-				for (int j = 0; j < 4; j++) {
-					intValue = 16*16*intValue + (Integer.valueOf(s.substring(2*j,2*j+2), 16).intValue());
-				}
-				value.put(i, (double) intValue);
+			if (type.equals("float") || type.equals("double")) {
+				// Interpret word as Float
+				value.setDouble(i, buf.getFloat());
+			} else if (type.equals("int") || type.equals("boolean")
+					|| type.equals("string")) {
+				// Interpret word as Integer (4 char of a string = 1 int)
+				value.setDouble(i, buf.getInt());
 			} else {
-				System.err.println(object + " not yet implemented in DTParameter: contact developer");
-				// "double" to implement (clahe)
+				System.err.println(type + " not yet implemented in DTParameter: contact developer");
+				buf.getInt(); // skip word
 			}
 		}
 		this.put("value", value);
-
 	}
 
-	public String write() {
-		String param = "";
+	/**
+	 * @param buf
+	 *            : history_params bytes (little endian) to fill with this
+	 *            parameter
+	 */
+	public void write(ByteBuffer buf) {
+		Object type = this.get("type");
+		DTValue dtVal = (DTValue) this.get("value");
 		for (int i = 0; i < this.length; i++) {
-			// get value(i)
-			DTValue dtVal = (DTValue) this.get("value");
-			Double vald = (Double) dtVal.get(i);
-			Integer vali = null;
-			if (this.get("type").equals("float")) {
-				// Write float in hexa
-				Float valf = (float) ((double) vald);
-				vali = Float.floatToIntBits(valf);
-			} else if (this.get("type").equals("int")
-					|| this.get("type").equals("boolean")) {
-				// 4*char = 1*int
-				// Write integer in hexa
-				vali = (int) ((double) vald);
-			} else if (this.get("type").equals("string")) {
-				// TODO write int/string in hexa 
-				vali  = (int) ((double) vald);
+			double vald = dtVal.getDouble(i);
+			if (type.equals("float") || type.equals("double")) {
+				// Write word as float
+				buf.putFloat((float) vald);
+			} else {
+				// Write word as integer (int, boolean, string)
+				buf.putInt((int) vald);
 			}
-			String s = String.format("%08x", vali);
-			// inverts order of the 8 char word, 2 by 2 char : DDCCBBAA =>
-			// AABBCCDD (little/big endian convention?)
-			param = param + s.substring(6, 8) + s.substring(4, 6)
-					+ s.substring(2, 4) + s.substring(0, 2);
-		}		
-		return param;
+		}
 	}
 
 }
@@ -1,16 +1,167 @@
 package operations;
 
-import java.util.LinkedHashMap;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
 
-public class DTValue extends LinkedHashMap<Integer, Number> {
+public class DTValue extends AbstractMap<Integer, Number> {
 
 	/**
-	 * DTValue replace double[] to define parameterization values
+	 * DTValue replace double[] to define parameterization values. Values are
+	 * kept as primitives, in its own array or in a slice of a DTColumnStore
+	 * column shared by all frames of a sequence (see bind)
 	 */
-	private static final long serialVersionUID = -7576586432896332571L;
+
+	private double[] data;
+	private int offset;
+	private int length;
+	private boolean isBound; // data is a DTColumnStore column
+	private boolean isShared; // data is shared with a copy
 
 	public DTValue() {
+		this(0);
+	}
+
+	public DTValue(int length) {
 		super();
+		this.data = new double[length];
+		this.offset = 0;
+		this.length = length;
+		this.isBound = false;
+		this.isShared = false;
+	}
+
+	public DTValue(DTValue value) {
+		super();
+		if (value.isBound) {
+			// a column slice is not shared: copy values now
+			this.data = new double[value.length];
+			System.arraycopy(value.data, value.offset, this.data, 0,
+					value.length);
+			this.offset = 0;
+		} else {
+			this.data = value.data;
+			this.offset = value.offset;
+			this.isShared = true;
+			value.isShared = true;
+		}
+		this.length = value.length;
+		this.isBound = false;
+	}
+
+	public double getDouble(int index) {
+		if (index < 0 || index >= this.length) {
+			throw new IndexOutOfBoundsException("DTValue index " + index
+					+ " out of " + this.length);
+		}
+		return this.data[this.offset + index];
+	}
+
+	public void setDouble(int index, double value) {
+		if (this.isShared) {
+			// first write: own copy of the values
+			double[] owned = new double[Math.max(index + 1, this.length)];
+			System.arraycopy(this.data, this.offset, owned, 0, this.length);
+			this.data = owned;
+			this.offset = 0;
+			this.isShared = false;
+		}
+		if (index >= this.length && !this.isBound) {
+			// own array: grows as values are added
+			double[] grown = new double[Math.max(index + 1, 2 * this.length)];
+			System.arraycopy(this.data, 0, grown, 0, this.length);
+			this.data = grown;
+			this.length = index + 1;
+		}
+		if (index < 0 || index >= this.length) {
+			throw new IndexOutOfBoundsException("DTValue index " + index
+					+ " out of " + this.length);
+		}
+		this.data[this.offset + index] = value;
+	}
+
+	public void bind(double[] column, int offset) {
+		// move values into column[offset...offset+size()-1], then read and
+		// write them there
+		System.arraycopy(this.data, this.offset, column, offset, this.length);
+		this.data = column;
+		this.offset = offset;
+		this.isBound = true;
+		this.isShared = false;
+	}
+
+	@Override
+	public int size() {
+		return this.length;
+	}
+
+	@Override
+	public boolean containsKey(Object key) {
+		return (key instanceof Integer) && (Integer) key >= 0
+				&& (Integer) key < this.length;
+	}
+
+	@Override
+	public Number get(Object key) {
+		if (!this.containsKey(key)) {
+			return null;
+		}
+		return this.getDouble((Integer) key);
+	}
+
+	@Override
+	public Number put(Integer key, Number value) {
+		Number old = this.get(key);
+		this.setDouble(key, value.doubleValue());
+		return old;
+	}
+
+	@Override
+	public Set<Map.Entry<Integer, Number>> entrySet() {
+		return new AbstractSet<Map.Entry<Integer, Number>>() {
+			@Override
+			public int size() {
+				return length;
+			}
+
+			@Override
+			public Iterator<Map.Entry<Integer, Number>> iterator() {
+				return new Iterator<Map.Entry<Integer, Number>>() {
+					private int next = 0;
+
+					@Override
+					public boolean hasNext() {
+						return this.next < length;
+					}
+
+					@Override
+					public Map.Entry<Integer, Number> next() {
+						if (!this.hasNext()) {
+							throw new NoSuchElementException();
+						}
+						final int index = this.next++;
+						return new AbstractMap.SimpleEntry<Integer, Number>(
+								index, getDouble(index)) {
+							private static final long serialVersionUID = 1L;
+
+							@Override
+							public Number setValue(Number value) {
+								setDouble(index, value.doubleValue());
+								return super.setValue(value);
+							}
+						};
+					}
+
+					@Override
+					public void remove() {
+						throw new UnsupportedOperationException();
+					}
+				};
+			}
+		};
 	}
 
 }
@@ -31,6 +31,7 @@ public class Exposure extends DTOperation {
 	}
 	
 	public void addDefaultValue() {
+		this.version = "2"; // black, exposure, gain
 		this.addParam();
 		// default value
 		DTValue valueBlack = new DTValue();
@@ -5,24 +5,25 @@ import operations.DTParameter;
 
 public class Highlights extends DTOperation {
 	/**
-	 * colorzones
+	 * highlights
 	 */
 	private static final long serialVersionUID = -8173842643135545850L;
 
 	public Highlights() {
-		super("colorzones", true);
+		super("highlights", true);
 	}
 
 	@Override
 	public void addParam() {
 
+		// other versions (larger params since darktable 3.x): no parameter,
+		// history_params kept as read
 		if (this.version.equals("1")) {
 			this.put("mode", new DTParameter("int", 1, null, false));
 			this.put("blendL", new DTParameter("float",1, null));
 			this.put("blendC", new DTParameter("float",1, null));
 			this.put("blendh", new DTParameter("float",1, null));
-			this.put("clip", new DTParameter("float",1, null));
-		} else {
+		} else if (this.version.equals("2")) {
 			this.put("mode", new DTParameter("int", 1, null, false));
 			this.put("blendL", new DTParameter("float",1, null));
 			this.put("blendC", new DTParameter("float",1, null));
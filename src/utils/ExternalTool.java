@@ -0,0 +1,112 @@
+package utils;
+
+import java.io.File;
+import java.io.IOException;
+
+public class ExternalTool {
+
+	/**
+	 * ExternalTool : an external program (darktable-cli, mencoder...), its
+	 * path resolved once by ToolRegistry and its version probed on first
+	 * request only
+	 */
+
+	public String name; // program name, e.g. "darktable-cli"
+	public String path; // absolute path, "" if not found
+	public String origin; // where the path comes from (PATH, env...)
+	private String[] versionArgs; // arguments printing the version
+	private String version; // null: not probed yet
+
+	public ExternalTool(String name, String path, String origin,
+			String... versionArgs) {
+		super();
+		this.name = name;
+		this.path = path;
+		this.origin = origin;
+		this.versionArgs = versionArgs;
+		this.version = null;
+	}
+
+	public boolean isAvailable() {
+		return !this.path.isEmpty();
+	}
+
+	public String getPathOrName() {
+		// path if found, bare name otherwise (e.g. in a generated script)
+		return this.isAvailable() ? this.path : this.name;
+	}
+
+	/**
+	 * path of the tool, for a step which cannot be done without it
+	 *
+	 * @param purpose
+	 *            : what the tool is needed for (error message)
+	 * @throws IOException
+	 *             if the tool was not found
+	 */
+	public String require(String purpose) throws IOException {
+		if (!this.isAvailable()) {
+			throw new IOException(this.name + " not found, needed for "
+					+ purpose + " (install it or set its path in "
+					+ ToolRegistry.envName(this.name) + ", -D"
+					+ ToolRegistry.propertyName(this.name) + " or "
+					+ ToolRegistry.CONFIG_FILE + ")");
+		}
+		return this.path;
+	}
+
+	public synchronized String getVersion() {
+		// first line printed by the tool, "" if unknown
+		if (this.version == null) {
+			this.version = "";
+			if (this.isAvailable()) {
+				String[] cmd = new String[this.versionArgs.length + 1];
+				cmd[0] = this.path;
+				System.arraycopy(this.versionArgs, 0, cmd, 1,
+						this.versionArgs.length);
+				ProcessRunner runner = new ProcessRunner(cmd);
+				runner.isEcho = false;
+				runner.isMergeStderr = true;
+				runner.timeoutMillis = 10000;
+				ProcessResult result = runner.run();
+				for (String line : result.stdout.split("\n")) {
+					if (!line.trim().isEmpty()) {
+						this.version = line.trim();
+						break;
+					}
+				}
+			}
+		}
+		return this.version;
+	}
+
+	static String findInPath(String name) {
+		// same lookup as "which", without running it
+		if (name.contains(File.separator)) {
+			File f = new File(name);
+			return (f.isFile() && f.canExecute()) ? f.getAbsolutePath() : "";
+		}
+		String pathEnv = System.getenv("PATH");
+		if (pathEnv == null) {
+			return "";
+		}
+		for (String dir : pathEnv.split(File.pathSeparator)) {
+			File f = new File(dir.isEmpty() ? "." : dir, name);
+			if (f.isFile() && f.canExecute()) {
+				return f.getAbsolutePath();
+			}
+		}
+		return "";
+	}
+
+	@Override
+	public String toString() {
+		if (!this.isAvailable()) {
+			return this.name + " : not found";
+		}
+		String v = this.getVersion();
+		return this.name + " : " + this.path + " (" + this.origin + ")"
+				+ (v.isEmpty() ? "" : ", " + v);
+	}
+
+}
@@ -6,6 +6,7 @@ import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.file.Files;
 
 public class FileOp {
 
@@ -35,4 +36,25 @@ public class FileOp {
 		}
 	}
 
+	public static File createScratchDirectory(String prefix)
+			throws IOException {
+		// temporary folder in memory (tmpfs) if available, else on disk
+		File shm = new File("/dev/shm");
+		if (shm.isDirectory() && shm.canWrite()) {
+			return Files.createTempDirectory(shm.toPath(), prefix).toFile();
+		}
+		return Files.createTempDirectory(prefix).toFile();
+	}
+
+	public static void deleteRecursive(File file) {
+		// delete file or folder with its content
+		File[] children = file.listFiles();
+		if (children != null) {
+			for (File child : children) {
+				deleteRecursive(child);
+			}
+		}
+		file.delete();
+	}
+
 }
@@ -0,0 +1,53 @@
+package utils;
+
+public class ProcessResult {
+
+	/**
+	 * ProcessResult : outcome of a command run by ProcessRunner
+	 */
+
+	public String[] cmd;
+	public int exitCode; // -1 if the command could not be run
+	public String stdout; // (stdout + stderr if merged)
+	public String stderr;
+	public String lastLine; // last line of stdout ("" if none)
+	public long wallNanos;
+	public boolean isTimedOut;
+	public boolean isCancelled;
+	public Exception error; // failure to start/run the command, else null
+
+	public ProcessResult(String[] cmd) {
+		super();
+		this.cmd = cmd;
+		this.exitCode = -1;
+		this.stdout = "";
+		this.stderr = "";
+		this.lastLine = "";
+		this.wallNanos = 0;
+		this.isTimedOut = false;
+		this.isCancelled = false;
+		this.error = null;
+	}
+
+	public boolean isOk() {
+		return this.exitCode == 0 && !this.isTimedOut && !this.isCancelled
+				&& this.error == null;
+	}
+
+	@Override
+	public String toString() {
+		String status;
+		if (this.error != null) {
+			status = "failed to run (" + this.error.getMessage() + ")";
+		} else if (this.isTimedOut) {
+			status = "timed out";
+		} else if (this.isCancelled) {
+			status = "cancelled";
+		} else {
+			status = "exit code " + this.exitCode;
+		}
+		return this.cmd[0] + ": " + status + " in "
+				+ String.format("%.2f", this.wallNanos / 1e9) + " s";
+	}
+
+}
@@ -0,0 +1,255 @@
+package utils;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+public class ProcessRunner {
+
+	/**
+	 * ProcessRunner : runs an external command with ProcessBuilder. stdout
+	 * and stderr are drained at the same time (or merged), so a command
+	 * filling one pipe never blocks. The command could be stopped by a
+	 * timeout or cancelled (interrupt of the calling thread, cancel(),
+	 * cancelAll() at JVM exit): the calling thread only waits for the
+	 * process, a command still running GRACE_MILLIS after being stopped is
+	 * killed. Nothing is thrown: the result tells what happened. Wall time
+	 * of each command is summed per program (see printMetrics).
+	 */
+
+	private static final long GRACE_MILLIS = 5000; // stop => kill
+
+	// running processes, destroyed by cancelAll (e.g. on Ctrl-C)
+	private static final Set<Process> running = java.util.Collections
+			.newSetFromMap(new ConcurrentHashMap<Process, Boolean>());
+	// per program: {number of runs, total wall time (ns)}
+	private static final Map<String, long[]> metrics = new ConcurrentHashMap<String, long[]>();
+	private static final ScheduledExecutorService timer = Executors
+			.newSingleThreadScheduledExecutor(new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread t = new Thread(r, "process-timeout");
+					t.setDaemon(true);
+					return t;
+				}
+			});
+	static {
+		Runtime.getRuntime().addShutdownHook(new Thread() {
+			@Override
+			public void run() {
+				cancelAll();
+			}
+		});
+	}
+
+	public String[] cmd;
+	public File workDir; // null: current dir
+	public long timeoutMillis; // 0: no timeout
+	public boolean isMergeStderr; // stderr in stdout
+	public boolean isEcho; // print command and its output lines
+	private volatile Process process;
+	private volatile boolean isCancelled;
+
+	public ProcessRunner(String... cmd) {
+		super();
+		this.cmd = cmd;
+		this.workDir = null;
+		this.timeoutMillis = 0;
+		this.isMergeStderr = false;
+		this.isEcho = true;
+		this.isCancelled = false;
+	}
+
+	public ProcessResult run() {
+		final ProcessResult result = new ProcessResult(this.cmd);
+		long t0 = System.nanoTime();
+		if (this.isEcho) {
+			// echo in one line: commands may run in parallel
+			StringBuilder cmdLine = new StringBuilder();
+			for (String arg : this.cmd) {
+				cmdLine.append(arg).append(" ");
+			}
+			System.out.println(cmdLine);
+		}
+
+		ScheduledFuture<?> timeout = null;
+		Thread stdoutDrain = null;
+		Thread stderrDrain = null;
+		try {
+			ProcessBuilder pb = new ProcessBuilder(this.cmd);
+			pb.redirectErrorStream(this.isMergeStderr);
+			if (this.workDir != null) {
+				pb.directory(this.workDir);
+			}
+			final Process p = pb.start();
+			this.process = p;
+			running.add(p);
+			if (this.isCancelled) {
+				p.destroy();
+			}
+			if (this.timeoutMillis > 0) {
+				timeout = timer.schedule(new Runnable() {
+					@Override
+					public void run() {
+						result.isTimedOut = true;
+						p.destroy();
+					}
+				}, this.timeoutMillis, TimeUnit.MILLISECONDS);
+			}
+			p.getOutputStream().close(); // no input
+
+			// stdout and stderr in their own threads, this one only waits
+			// (interrupt: process stopped)
+			final StringBuilder out = new StringBuilder();
+			final StringBuilder err = new StringBuilder();
+			stdoutDrain = new Thread("process-stdout") {
+				@Override
+				public void run() {
+					result.lastLine = drain(p.getInputStream(), out);
+				}
+			};
+			stdoutDrain.setDaemon(true);
+			stdoutDrain.start();
+			if (!this.isMergeStderr) {
+				stderrDrain = new Thread("process-stderr") {
+					@Override
+					public void run() {
+						drain(p.getErrorStream(), err);
+					}
+				};
+				stderrDrain.setDaemon(true);
+				stderrDrain.start();
+			}
+			result.exitCode = p.waitFor();
+			stdoutDrain.join();
+			if (stderrDrain != null) {
+				stderrDrain.join();
+			}
+			result.stdout = out.toString();
+			result.stderr = err.toString();
+		} catch (IOException e) {
+			System.err.println("cannot run " + this.cmd[0] + ": "
+					+ e.getMessage());
+			result.error = e;
+		} catch (InterruptedException e) {
+			// caller cancelled: stop the command
+			result.isCancelled = true;
+			Process p = this.process;
+			if (p != null) {
+				stop(p);
+			}
+			Thread.currentThread().interrupt();
+		} finally {
+			if (timeout != null) {
+				timeout.cancel(false);
+			}
+			Process p = this.process;
+			if (p != null) {
+				running.remove(p);
+			}
+			this.process = null;
+		}
+		if (this.isCancelled) {
+			result.isCancelled = true;
+		}
+		result.wallNanos = System.nanoTime() - t0;
+		addMetrics(this.cmd[0], result.wallNanos);
+		return result;
+	}
+
+	private static void stop(Process p) {
+		// destroy p, killed if still running after GRACE_MILLIS
+		p.destroy();
+		try {
+			if (p.waitFor(GRACE_MILLIS, TimeUnit.MILLISECONDS)) {
+				return;
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		p.destroyForcibly();
+	}
+
+	private String drain(InputStream is, StringBuilder text) {
+		// read all lines of is, return the last one
+		String last = "";
+		BufferedReader br = new BufferedReader(new InputStreamReader(is));
+		try {
+			String s;
+			while ((s = br.readLine()) != null) {
+				if (this.isEcho) {
+					System.out.println(s);
+				}
+				text.append(s).append('\n');
+				last = s;
+			}
+		} catch (IOException e) {
+			// stream closed (process destroyed)
+		} finally {
+			try {
+				br.close();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+		return last;
+	}
+
+	public void cancel() {
+		/** stop the command (now if running, at start otherwise) **/
+		this.isCancelled = true;
+		Process p = this.process;
+		if (p != null) {
+			p.destroy();
+		}
+	}
+
+	public static void cancelAll() {
+		/** stop all running commands **/
+		for (Process p : running) {
+			p.destroy();
+		}
+	}
+
+	private static void addMetrics(String program, long wallNanos) {
+		String name = new File(program).getName();
+		synchronized (metrics) {
+			long[] m = metrics.get(name);
+			if (m == null) {
+				m = new long[2];
+				metrics.put(name, m);
+			}
+			m[0] += 1;
+			m[1] += wallNanos;
+		}
+	}
+
+	public static void printMetrics() {
+		/** number of runs and wall time of each program **/
+		synchronized (metrics) {
+			if (metrics.isEmpty()) {
+				return;
+			}
+			System.out.println("\nexternal commands:");
+			for (Map.Entry<String, long[]> e : new TreeMap<String, long[]>(
+					metrics).entrySet()) {
+				long[] m = e.getValue();
+				System.out.println(String.format(
+						"  %-16s %6d run(s) %10.1f s (%.2f s/run)", e.getKey(),
+						m[0], m[1] / 1e9, m[1] / 1e9 / m[0]));
+			}
+		}
+	}
+
+}
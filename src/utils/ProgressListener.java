@@ -0,0 +1,16 @@
+package utils;
+
+public interface ProgressListener {
+
+	/**
+	 * ProgressListener : notified each time one item of a long task is done
+	 * (e.g. a XMP file read). It could be called from worker threads.
+	 * 
+	 * @param done
+	 *            : number of items done
+	 * @param total
+	 *            : number of items of the task
+	 */
+	public void progress(int done, int total);
+
+}
@@ -0,0 +1,107 @@
+package utils;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+
+public class ToolRegistry {
+
+	/**
+	 * ToolRegistry : external programs shared by the whole process. A tool is
+	 * resolved on its first request only and then cached, so creating a
+	 * TLDTCore (e.g. each run from the GUI) does not fork anything. Path of
+	 * a tool could be set, by order of priority, by the system property
+	 * tldt.<name>, the environment variable TLDT_<NAME> or the file
+	 * ~/.timelapse-darktable/tools.properties (<name>=<path>), else it is
+	 * searched in the PATH.
+	 */
+
+	public static final String DARKTABLE_CLI = "darktable-cli";
+	public static final String MENCODER = "mencoder";
+	public static final String OCTAVE = "octave";
+	public static final String CONFIG_FILE = System.getProperty("user.home")
+			+ "/.timelapse-darktable/tools.properties";
+
+	private static final Map<String, ExternalTool> tools = new HashMap<String, ExternalTool>();
+	private static Properties config = null;
+
+	public static synchronized ExternalTool get(String name) {
+		ExternalTool tool = tools.get(name);
+		if (tool == null) {
+			tool = resolve(name);
+			tools.put(name, tool);
+		}
+		return tool;
+	}
+
+	public static synchronized void reset() {
+		// resolve again all tools (e.g. configuration changed)
+		tools.clear();
+		config = null;
+	}
+
+	private static ExternalTool resolve(String name) {
+		String[] versionArgs = versionArgs(name);
+		String override = System.getProperty(propertyName(name));
+		String origin = "-D" + propertyName(name);
+		if (override == null || override.isEmpty()) {
+			override = System.getenv(envName(name));
+			origin = envName(name);
+		}
+		if (override == null || override.isEmpty()) {
+			override = getConfig().getProperty(name);
+			origin = CONFIG_FILE;
+		}
+		if (override != null && !override.isEmpty()) {
+			String path = ExternalTool.findInPath(override);
+			if (path.isEmpty()) {
+				System.err.println(name + " set to " + override + " by "
+						+ origin + ": not an executable file");
+			}
+			return new ExternalTool(name, path, origin, versionArgs);
+		}
+		return new ExternalTool(name, ExternalTool.findInPath(name), "PATH",
+				versionArgs);
+	}
+
+	private static String[] versionArgs(String name) {
+		if (name.equals(MENCODER)) {
+			// no version option, the banner is printed first
+			return new String[] { "-really-quiet" };
+		}
+		return new String[] { "--version" };
+	}
+
+	private static Properties getConfig() {
+		if (config == null) {
+			config = new Properties();
+			File f = new File(CONFIG_FILE);
+			if (f.isFile()) {
+				try {
+					InputStream is = new FileInputStream(f);
+					try {
+						config.load(is);
+					} finally {
+						is.close();
+					}
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+			}
+		}
+		return config;
+	}
+
+	static String propertyName(String name) {
+		return "tldt." + name;
+	}
+
+	static String envName(String name) {
+		return "TLDT_" + name.toUpperCase().replace('-', '_');
+	}
+
+}
@@ -1,13 +1,10 @@
 package xmp;
 
 import java.util.ArrayList;
+import java.util.HashMap;
 
-import operations.DTConfiguration;
 import operations.DTOperation;
 
-import org.w3c.dom.Node;
-import org.w3c.dom.NodeList;
-
 public class XmpDTConf {
 
 	/**
@@ -25,172 +22,111 @@ public class XmpDTConf {
 	public Integer index;
 	public String ratingStr; // rating stars
 	public Integer rating; // rating stars number
+	public String historyEnd; // history items applied (null: not in XMP)
 	public XmpFile xmpFile;
+	private int nRead; // history items of xmpFile
 
 	public XmpDTConf(String xmpFileName) {
 		super();
 
 		xmpFile = new XmpFile(xmpFileName);
 
-		// get info from NodeList (parsed xmp)
-		histVer = getValuesOfNode(xmpFile.nList, new String[] { "x:xmpmeta",
-				"rdf:RDF", "rdf:Description", "darktable:history_modversion",
-				"rdf:Seq" }, "rdf:li");
-		histEna = getValuesOfNode(xmpFile.nList, new String[] { "x:xmpmeta",
-				"rdf:RDF", "rdf:Description", "darktable:history_enabled",
-				"rdf:Seq" }, "rdf:li");
-		histOp = getValuesOfNode(xmpFile.nList, new String[] { "x:xmpmeta",
-				"rdf:RDF", "rdf:Description", "darktable:history_operation",
-				"rdf:Seq" }, "rdf:li");
-		histPar = getValuesOfNode(xmpFile.nList, new String[] { "x:xmpmeta",
-				"rdf:RDF", "rdf:Description", "darktable:history_params",
-				"rdf:Seq" }, "rdf:li");
-		blopPar = getValuesOfNode(xmpFile.nList, new String[] { "x:xmpmeta",
-				"rdf:RDF", "rdf:Description", "darktable:blendop_params",
-				"rdf:Seq" }, "rdf:li");
-		blopVer = getValuesOfNode(xmpFile.nList, new String[] { "x:xmpmeta",
-				"rdf:RDF", "rdf:Description", "darktable:blendop_version",
-				"rdf:Seq" }, "rdf:li");
-		multPrio = getValuesOfNode(xmpFile.nList, new String[] { "x:xmpmeta",
-				"rdf:RDF", "rdf:Description", "darktable:multi_priority",
-				"rdf:Seq" }, "rdf:li");
-		multName = getValuesOfNode(xmpFile.nList,
-				new String[] { "x:xmpmeta", "rdf:RDF", "rdf:Description",
-						"darktable:multi_name", "rdf:Seq" }, "rdf:li");
-		srcFile = getNodeAttribute(xmpFile.nList, new String[] { "x:xmpmeta",
-				"rdf:RDF" }, "rdf:Description", "xmpMM:DerivedFrom");
+		// get info from darktable sequences (single scan of the xmp)
+		histVer = xmpFile.getSeq("darktable:history_modversion");
+		histEna = xmpFile.getSeq("darktable:history_enabled");
+		histOp = xmpFile.getSeq("darktable:history_operation");
+		histPar = xmpFile.getSeq("darktable:history_params");
+		blopPar = xmpFile.getSeq("darktable:blendop_params");
+		blopVer = xmpFile.getSeq("darktable:blendop_version");
+		multPrio = xmpFile.getSeq("darktable:multi_priority");
+		multName = xmpFile.getSeq("darktable:multi_name");
+		srcFile = xmpFile.getAttribute("xmpMM:DerivedFrom");
 		index = Integer.parseInt(srcFile.replaceAll("(.*\\D)(\\d+)(\\D.*)",
 				"$2"));
-		ratingStr = getNodeAttribute(xmpFile.nList, new String[] { "x:xmpmeta",
-		"rdf:RDF" }, "rdf:Description", "xmp:Rating");
+		ratingStr = xmpFile.getAttribute("xmp:Rating");
 		rating = Integer.parseInt(ratingStr);
+		historyEnd = xmpFile.hasAttribute("darktable:history_end") ? xmpFile
+				.getAttribute("darktable:history_end") : null;
+		nRead = histOp.size();
 	}
 
-	public void write(String outFolder) {
-		// update xmpFile from ArrayList<String> of values
-		setValuesOfNode(new String[] { "x:xmpmeta", "rdf:RDF",
-				"rdf:Description", "darktable:history_params", "rdf:Seq" },
-				"rdf:li", this.histPar);
-		setValuesOfNode(new String[] { "x:xmpmeta", 	"rdf:RDF",
-				"rdf:Description", "darktable:history_enabled", "rdf:Seq" },
-				"rdf:li", this.histEna);
-		setNodeAttribute(new String[] { "x:xmpmeta", "rdf:RDF" },
-				"rdf:Description", "xmpMM:DerivedFrom", this.srcFile);
-		setNodeAttribute(new String[] { "x:xmpmeta", "rdf:RDF" },
-				"rdf:Description", "xmp:Rating", this.ratingStr);
-		this.xmpFile.write(outFolder, this.srcFile);
-	}
-
-	/*
-	 * methods below are used to read XML nodes/attributes
-	 */
-
-	public static ArrayList<String> getValuesOfNode(NodeList nList,
-			String[] path, String nodeName) {
-		/**
-		 * Get all content values (ArrayList of String) of specified "nodeName"
-		 * in node list "nList" after filtering nodes by each string of "path"
-		 * array
-		 **/
-		NodeList subList = getNodeListWithNames(nList, path);
-		return getNodesContent(subList, nodeName);
-	}
-
-	public static NodeList getNodeListWithNames(NodeList nodeList,
-			String[] names) {
+	public XmpDTConf(XmpDTConf xmpConf) {
 		/**
-		 * Get successively, for each string of "names", the child nodes of
-		 * "nodeList"
+		 * patch set of one frame on the same XMP template: the file is not
+		 * read again, and changes of this frame (params, rating...) do not
+		 * modify xmpConf
 		 **/
-		for (String name : names) {
-			nodeList = getFirstNodeWithName(nodeList, name).getChildNodes();
-		}
-		return nodeList;
+		super();
+		xmpFile = xmpConf.xmpFile;
+		histVer = new ArrayList<String>(xmpConf.histVer);
+		histEna = new ArrayList<String>(xmpConf.histEna);
+		histOp = new ArrayList<String>(xmpConf.histOp);
+		histPar = new ArrayList<String>(xmpConf.histPar);
+		blopPar = new ArrayList<String>(xmpConf.blopPar);
+		blopVer = new ArrayList<String>(xmpConf.blopVer);
+		multPrio = new ArrayList<String>(xmpConf.multPrio);
+		multName = new ArrayList<String>(xmpConf.multName);
+		srcFile = xmpConf.srcFile;
+		index = xmpConf.index;
+		ratingStr = xmpConf.ratingStr;
+		rating = xmpConf.rating;
+		historyEnd = xmpConf.historyEnd;
+		nRead = xmpConf.nRead;
 	}
 
-	public static Node getFirstNodeWithName(NodeList nodeList, String name) {
-		/** Get first node with the specified "name" **/
-		for (int i = 0; i < nodeList.getLength(); i++) {
-			if (nodeList.item(i).getNodeName().equals(name)) {
-				return nodeList.item(i);
-			}
-		}
-		throw new Error("Node with name " + name + "not found");
+	public void write(String outFolder) {
+		this.write(outFolder, this.srcFile);
 	}
 
-	public static ArrayList<String> getNodesContent(NodeList nodeList,
-			String nodeName) {
-		/**
-		 * Get text content of all nodes of "nodeList" with specified "nodeName"
-		 **/
-		ArrayList<String> ret = new ArrayList<String>();
-		for (int i = 0; i < nodeList.getLength(); i++) {
-			if (nodeList.item(i).getNodeName().equals(nodeName)) {
-				Node node = nodeList.item(i);
-				ret.add(node.getTextContent());
-			}
+	public void write(String outFolder, String xmpName) {
+		// write xmpFile (outFolder/xmpName.xmp) with ArrayList<String> of
+		// values
+		HashMap<String, ArrayList<String>> seqValues = new HashMap<String, ArrayList<String>>();
+		seqValues.put("darktable:history_params", this.histPar);
+		seqValues.put("darktable:history_enabled", this.histEna);
+		if (this.histOp.size() != this.nRead) {
+			// history items added (see addNode): all sequences are written
+			seqValues.put("darktable:history_modversion", this.histVer);
+			seqValues.put("darktable:history_operation", this.histOp);
+			seqValues.put("darktable:blendop_params", this.blopPar);
+			seqValues.put("darktable:blendop_version", this.blopVer);
+			seqValues.put("darktable:multi_priority", this.multPrio);
+			seqValues.put("darktable:multi_name", this.multName);
 		}
-		return ret;
-	}
-
-	public void setValuesOfNode(String[] path, String nodeName,
-			ArrayList<String> nodesValue) {
-		// NodeList nodeList = this.xmpFile.nList;
-		// NodeList rdf = getNodeListWithNames(this.xmpFile.nList,path);
-		setNodesContent(getNodeListWithNames(this.xmpFile.nList, path),
-				nodeName, nodesValue);
-	}
-
-	public void setNodesContent(NodeList nodeList, String nodeName,
-			ArrayList<String> nodesValue) {
-		int idxNode = 0;
-		for (int i = 0; i < nodeList.getLength(); i++) {
-			if (nodeList.item(i).getNodeName().equals(nodeName)) {
-				Node node = nodeList.item(i);
-				// System.out.println("before "+nodeList.item(i).getTextContent());
-				node.setTextContent(nodesValue.get(idxNode));
-				// System.out.println("after "+nodeList.item(i).getTextContent());
-				idxNode += 1;
-			}
+		HashMap<String, String> attributeValues = new HashMap<String, String>();
+		attributeValues.put("xmpMM:DerivedFrom", this.srcFile);
+		attributeValues.put("xmp:Rating", this.ratingStr);
+		if (this.historyEnd != null) {
+			attributeValues.put("darktable:history_end", this.historyEnd);
 		}
+		this.xmpFile.write(outFolder, xmpName, seqValues,
+				attributeValues);
 	}
 
-	public String getNodeAttribute(NodeList nodeList, String[] parentNodeNames,
-			String nodeName, String attributeName) {
-		/* Get the parent node first */
-		NodeList rdf = getNodeListWithNames(nodeList, parentNodeNames);
-		/* Get the interest node */
-		Node desc = getFirstNodeWithName(rdf, nodeName);
-		String attribute = desc.getAttributes().getNamedItem(attributeName)
-				.getNodeValue();
-		return attribute;
-	}
-
-	public void setNodeAttribute(String[] parentNodeNames, String nodeName,
-			String attributeName, String setValue) {
-		NodeList nodeList = this.xmpFile.nList;
-		/* Get the parent node first */
-		NodeList rdf = getNodeListWithNames(nodeList, parentNodeNames);
-		/* Set new value of the interest node attribute */
-		Node desc = getFirstNodeWithName(rdf, nodeName);
-		desc.getAttributes().getNamedItem(attributeName).setNodeValue(setValue);
-	}
-	
 	public void addNode(DTOperation dto){
+		// new history item at the end, applied (history_end moved with it):
+		// blendop of the default filter if any, else the one of dto
+		if (this.historyEnd != null
+				&& Integer.parseInt(this.historyEnd) != this.histOp.size()) {
+			throw new Error("Cannot add " + dto.name + " to "
+					+ this.xmpFile.getPath() + ": history_end "
+					+ this.historyEnd + " is not the end of the history");
+		}
 		String defaultOpName = "temperature"; // default filter to copy
-		for (int i = 0; i < this.histOp.size(); i++) {
-			if (this.histOp.get(i).equals(defaultOpName)) {
-				this.blopPar.add(this.blopPar.get(i));
-				this.blopVer.add(this.blopVer.get(i));
-				this.histEna.add(DTOperation.writeEnable(dto));
-				this.histOp.add(dto.name);
-				this.histPar.add(DTOperation.writeParams(dto));
-				this.histVer.add(dto.version);
-				this.multName.add(dto.multiName);
-				this.multPrio.add(dto.multiPriority);
-			}
+		int iDefault = this.histOp.indexOf(defaultOpName);
+		this.blopPar.add((iDefault < 0) ? dto.blendParams : this.blopPar
+				.get(iDefault));
+		this.blopVer.add((iDefault < 0) ? dto.blendVersion : this.blopVer
+				.get(iDefault));
+		this.histEna.add(DTOperation.writeEnable(dto));
+		this.histOp.add(dto.name);
+		this.histPar.add(DTOperation.writeParams(dto));
+		this.histVer.add(dto.version);
+		this.multName.add(dto.multiName);
+		this.multPrio.add(dto.multiPriority);
+		if (this.historyEnd != null) {
+			this.historyEnd = Integer.toString(this.histOp.size());
 		}
-		// add a node in NodeList... TODO
 	}
 
 }
@@ -1,55 +1,265 @@
 package xmp;
 
 import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
-
-import javax.xml.parsers.DocumentBuilder;
-import javax.xml.parsers.DocumentBuilderFactory;
-import javax.xml.parsers.ParserConfigurationException;
-import javax.xml.transform.Transformer;
-import javax.xml.transform.TransformerConfigurationException;
-import javax.xml.transform.TransformerException;
-import javax.xml.transform.TransformerFactory;
-import javax.xml.transform.dom.DOMSource;
-import javax.xml.transform.stream.StreamResult;
-
-import org.w3c.dom.Document;
-import org.w3c.dom.Node;
-import org.w3c.dom.NodeList;
-import org.xml.sax.SAXException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 
 public class XmpFile extends File {
 
 	/**
-	 * XmpFile : class to read / write a XmpFile of darktable
+	 * XmpFile : class to read / write a XmpFile of darktable. The file is
+	 * scanned once: values of the darktable sequences (rdf:li) and the
+	 * attributes of rdf:Description are extracted, and their position is kept
+	 * so that writing only splices new values into the original text. Values
+	 * added to a sequence are inserted after its last rdf:li.
 	 */
 
 	private static final long serialVersionUID = 4208479880752298126L;
 
-	public NodeList nList;
-	private Document doc;
+	private String content; // XMP text, template for writing
+	private Map<String, ArrayList<String>> seqs; // darktable:xxx => rdf:li
+	private Map<String, String> attributes; // of rdf:Description
+	private ArrayList<Slot> slots; // positions of values, in content order
+	private Map<String, Integer> seqEnds; // after the last rdf:li of a sequence
+	private Map<String, String> seqIndents; // before the last rdf:li
+
+	private static class Slot {
+		// [start, end[ of a value in content
+		int start;
+		int end;
+		String name; // sequence or attribute name
+		int index; // rdf:li index in the sequence, -1 for an attribute
+		boolean isEmptyTag; // <rdf:li/>: the whole tag is replaced
+
+		Slot(int start, int end, String name, int index, boolean isEmptyTag) {
+			this.start = start;
+			this.end = end;
+			this.name = name;
+			this.index = index;
+			this.isEmptyTag = isEmptyTag;
+		}
+	}
 
 	/** construct XmpFile class from one file .xmp */
 	public XmpFile(String arg1) {
 		super(arg1);
-		DocumentBuilderFactory docBuilderFactory = DocumentBuilderFactory
-				.newInstance();
-		DocumentBuilder docBuilder;
+		this.seqs = new HashMap<String, ArrayList<String>>();
+		this.attributes = new HashMap<String, String>();
+		this.slots = new ArrayList<Slot>();
+		this.seqEnds = new HashMap<String, Integer>();
+		this.seqIndents = new HashMap<String, String>();
 		try {
-			docBuilder = docBuilderFactory.newDocumentBuilder();
-			doc = docBuilder.parse(this);
-			nList = doc.getChildNodes();
-
-		} catch (ParserConfigurationException e) {
-			e.printStackTrace();
-		} catch (SAXException e) {
-			e.printStackTrace();
+			this.content = new String(Files.readAllBytes(this.toPath()),
+					StandardCharsets.UTF_8);
+			this.scan();
 		} catch (IOException e) {
 			e.printStackTrace();
+			this.content = "";
+		}
+	}
+
+	public ArrayList<String> getSeq(String name) {
+		/**
+		 * values (rdf:li) of the sequence "name" of rdf:Description (e.g.
+		 * darktable:history_params)
+		 **/
+		ArrayList<String> values = this.seqs.get(name);
+		if (values == null) {
+			throw new Error("Node with name " + name + " not found in "
+					+ this.getPath());
+		}
+		return new ArrayList<String>(values);
+	}
+
+	public boolean hasAttribute(String name) {
+		return this.attributes.containsKey(name);
+	}
+
+	public String getAttribute(String name) {
+		/** attribute "name" of rdf:Description (e.g. xmp:Rating) **/
+		String value = this.attributes.get(name);
+		if (value == null) {
+			throw new Error("Attribute " + name + " not found in "
+					+ this.getPath());
+		}
+		return value;
+	}
+
+	private void scan() {
+		/** single pass on the XMP tags, keeping the path of parent tags **/
+		String xml = this.content;
+		ArrayList<String> path = new ArrayList<String>();
+		String liSeq = null; // sequence of the current rdf:li
+		int liStart = -1;
+		String liIndent = null;
+		int pos = 0;
+		while ((pos = xml.indexOf('<', pos)) >= 0) {
+			if (xml.startsWith("<!--", pos)) {
+				pos = skipTo(xml, "-->", pos);
+				continue;
+			} else if (xml.startsWith("<![CDATA[", pos)) {
+				pos = skipTo(xml, "]]>", pos);
+				continue;
+			} else if (xml.startsWith("<?", pos) || xml.startsWith("<!", pos)) {
+				pos = skipTo(xml, ">", pos);
+				continue;
+			}
+			int end = tagEnd(xml, pos);
+			boolean isEndTag = xml.charAt(pos + 1) == '/';
+			boolean isEmptyTag = xml.charAt(end - 1) == '/';
+			int nameStart = isEndTag ? pos + 2 : pos + 1;
+			int nameEnd = nameStart;
+			while (nameEnd < end && !Character.isWhitespace(xml.charAt(nameEnd))
+					&& xml.charAt(nameEnd) != '/' && xml.charAt(nameEnd) != '>') {
+				nameEnd++;
+			}
+			String name = xml.substring(nameStart, nameEnd);
+
+			if (isEndTag) {
+				if (liSeq != null && name.equals("rdf:li")) {
+					this.addSeqValue(liSeq, liStart, pos, false);
+					this.seqEnds.put(liSeq, end + 1);
+					this.seqIndents.put(liSeq, liIndent);
+					liSeq = null;
+				}
+				if (!path.isEmpty()) {
+					path.remove(path.size() - 1);
+				}
+			} else {
+				path.add(name);
+				int depth = path.size();
+				if (name.equals("rdf:Description")) {
+					this.scanAttributes(xml, nameEnd, end);
+				} else if (name.equals("rdf:li") && depth >= 4
+						&& path.get(depth - 2).equals("rdf:Seq")
+						&& path.get(depth - 4).equals("rdf:Description")) {
+					// rdf:Description/darktable:xxx/rdf:Seq/rdf:li
+					if (isEmptyTag) {
+						this.addSeqValue(path.get(depth - 3), pos, end + 1,
+								true);
+						this.seqEnds.put(path.get(depth - 3), end + 1);
+						this.seqIndents.put(path.get(depth - 3),
+								indent(xml, pos));
+					} else {
+						liSeq = path.get(depth - 3);
+						liStart = end + 1;
+						liIndent = indent(xml, pos);
+					}
+				}
+				if (isEmptyTag) {
+					path.remove(path.size() - 1);
+				}
+			}
+			pos = end + 1;
+		}
+	}
+
+	private void addSeqValue(String seq, int start, int end, boolean isEmptyTag) {
+		ArrayList<String> values = this.seqs.get(seq);
+		if (values == null) {
+			values = new ArrayList<String>();
+			this.seqs.put(seq, values);
+		}
+		String value = isEmptyTag ? "" : unescape(this.content.substring(
+				start, end));
+		this.slots.add(new Slot(start, end, seq, values.size(), isEmptyTag));
+		values.add(value);
+	}
+
+	private void scanAttributes(String xml, int pos, int end) {
+		// name="value" or name='value' until the end of the tag
+		while (pos < end) {
+			int eq = xml.indexOf('=', pos);
+			if (eq < 0 || eq >= end) {
+				return;
+			}
+			String name = xml.substring(pos, eq).trim();
+			int quoteStart = eq + 1;
+			while (Character.isWhitespace(xml.charAt(quoteStart))) {
+				quoteStart++;
+			}
+			char quote = xml.charAt(quoteStart);
+			int quoteEnd = xml.indexOf(quote, quoteStart + 1);
+			if (!this.attributes.containsKey(name)) {
+				// first rdf:Description wins
+				this.attributes.put(name,
+						unescape(xml.substring(quoteStart + 1, quoteEnd)));
+				this.slots.add(new Slot(quoteStart + 1, quoteEnd, name, -1,
+						false));
+			}
+			pos = quoteEnd + 1;
 		}
 	}
 
-	public void write(String folder, String filename) {
+	private static String indent(String xml, int pos) {
+		// white spaces before the tag at pos
+		int start = pos;
+		while (start > 0 && Character.isWhitespace(xml.charAt(start - 1))) {
+			start--;
+		}
+		return xml.substring(start, pos);
+	}
+
+	private static int skipTo(String xml, String endMark, int pos) {
+		int end = xml.indexOf(endMark, pos);
+		return (end < 0) ? xml.length() : end + endMark.length();
+	}
+
+	private static int tagEnd(String xml, int pos) {
+		// position of '>' closing the tag, ignoring '>' in attribute values
+		char quote = 0;
+		for (int i = pos; i < xml.length(); i++) {
+			char c = xml.charAt(i);
+			if (quote != 0) {
+				if (c == quote) {
+					quote = 0;
+				}
+			} else if (c == '"' || c == '\'') {
+				quote = c;
+			} else if (c == '>') {
+				return i;
+			}
+		}
+		return xml.length() - 1;
+	}
+
+	private static String unescape(String s) {
+		if (s.indexOf('&') < 0) {
+			return s;
+		}
+		return s.replace("&lt;", "<").replace("&gt;", ">")
+				.replace("&quot;", "\"").replace("&apos;", "'")
+				.replace("&amp;", "&");
+	}
+
+	private static String escape(String s) {
+		return s.replace("&", "&amp;").replace("<", "&lt;")
+				.replace(">", "&gt;").replace("\"", "&quot;")
+				.replace("'", "&apos;");
+	}
+
+	/**
+	 * write a copy of the XMP file with new values
+	 *
+	 * @param folder
+	 * @param filename
+	 *            : written file is folder/filename.xmp
+	 * @param seqValues
+	 *            : new rdf:li values of sequences (e.g. history_params),
+	 *            values after the last rdf:li read are inserted
+	 * @param attributeValues
+	 *            : new attributes of rdf:Description (e.g. xmp:Rating)
+	 */
+	public void write(String folder, String filename,
+			Map<String, ? extends List<String>> seqValues,
+			Map<String, String> attributeValues) {
 		// create output dir if needed
 		File outFolder = new File(folder);
 		if (!outFolder.exists()) {
@@ -60,51 +270,88 @@ public class XmpFile extends File {
 			}
 		}
 
-		NodeList nListWrite = this.nList;
-		// clone xmp file and values then print file
-		Document docOut = (Document) this.doc.cloneNode(true);
+		// values added to sequences: inserted after their last rdf:li, each
+		// with the indentation of the last one
+		ArrayList<Slot> edits = this.slots;
+		Map<Slot, String> insertions = new HashMap<Slot, String>();
+		for (Map.Entry<String, ? extends List<String>> seq : seqValues
+				.entrySet()) {
+			ArrayList<String> read = this.seqs.get(seq.getKey());
+			int nRead = (read == null) ? 0 : read.size();
+			if (seq.getValue().size() <= nRead) {
+				continue;
+			}
+			if (nRead == 0) {
+				throw new Error("Node with name " + seq.getKey()
+						+ " has no rdf:li to insert values after in "
+						+ this.getPath());
+			}
+			StringBuilder added = new StringBuilder();
+			for (String value : seq.getValue().subList(nRead,
+					seq.getValue().size())) {
+				added.append(this.seqIndents.get(seq.getKey()))
+						.append("<rdf:li>").append(escape(value))
+						.append("</rdf:li>");
+			}
+			int end = this.seqEnds.get(seq.getKey());
+			Slot insertion = new Slot(end, end, seq.getKey(), -1, false);
+			insertions.put(insertion, added.toString());
+			if (edits == this.slots) {
+				edits = new ArrayList<Slot>(this.slots);
+			}
+			// after the slots of the last rdf:li (stable sort)
+			int i = edits.size();
+			while (i > 0 && edits.get(i - 1).start > end) {
+				i--;
+			}
+			edits.add(i, insertion);
+		}
+
+		// splice values into the original text (slots are in content order)
+		StringBuilder out = new StringBuilder(this.content.length() + 1024);
+		int pos = 0;
+		for (Slot slot : edits) {
+			String inserted = insertions.get(slot);
+			if (inserted != null) {
+				out.append(this.content, pos, slot.start).append(inserted);
+				pos = slot.end;
+				continue;
+			}
+			String value;
+			if (slot.index >= 0) {
+				List<String> values = seqValues.get(slot.name);
+				value = (values == null || slot.index >= values.size()) ? null
+						: values.get(slot.index);
+			} else {
+				value = attributeValues.get(slot.name);
+			}
+			if (value == null) {
+				continue; // unchanged
+			}
+			out.append(this.content, pos, slot.start);
+			if (slot.isEmptyTag) {
+				out.append("<rdf:li>").append(escape(value))
+						.append("</rdf:li>");
+			} else {
+				out.append(escape(value));
+			}
+			pos = slot.end;
+		}
+		out.append(this.content, pos, this.content.length());
+
 		try {
-			// write the content into xml file
-			TransformerFactory transformerFactory = TransformerFactory
-					.newInstance();
-			Transformer transformer;
-			transformer = transformerFactory.newTransformer();
-			@SuppressWarnings("unused")
-			NodeList nListOut = docOut.getChildNodes();
-			nListOut = nListWrite; // replace by content of entry
-			DOMSource source = new DOMSource(docOut);
-			StreamResult result = new StreamResult(new File(folder, filename
+			OutputStream os = new FileOutputStream(new File(folder, filename
 					+ ".xmp"));
-			transformer.transform(source, result);
+			try {
+				os.write(out.toString().getBytes(StandardCharsets.UTF_8));
+			} finally {
+				os.close();
+			}
 			System.out.println(filename + " : file saved!");
-		} catch (TransformerConfigurationException e) {
-			e.printStackTrace();
-		} catch (TransformerException e) {
+		} catch (IOException e) {
 			e.printStackTrace();
 		}
 
 	}
 
-	/* Following part is not useful for programs, but can be used for debug */
-
-	public static void printNodes(String prefix, NodeList nodeList) {
-		for (int i = 0; i < nodeList.getLength(); i++) {
-			Node node = nodeList.item(i);
-			System.out.println(prefix + "||" + node.getNodeName());
-			printNodes(prefix + "||" + node.getNodeName(), node.getChildNodes());
-		}
-	}
-
-	public static void printNodesContent(String prefix, NodeList nodeList) {
-		for (int i = 0; i < nodeList.getLength(); i++) {
-			Node node = nodeList.item(i);
-			System.out.println(prefix + "||" + node.getNodeName()
-					+ "\nText content: " + node.getTextContent() + "\nPrefix: "
-					+ node.getPrefix() + "\nLocal name: " + node.getLocalName()
-					+ "\nLocal value: " + node.getNodeValue()
-					+ "\nAttirubutes: " + node.getAttributes());
-			printNodes(prefix + "||" + node.getNodeName(), node.getChildNodes());
-		}
-	}
-
 }